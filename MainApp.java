@@ -5,12 +5,35 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
 
 /*
  Single-file Stock Market Simulator
@@ -20,10 +43,38 @@ import java.util.concurrent.*;
 */
 
 public class MainApp {
-    public static void main(String[] args) {
+    /**
+     Options: --seed N (reproducible prices), --record FILE (write a binary tick log),
+     --replay FILE (feed a tick log back instead of simulating), --fast (replay
+     without waiting between ticks), --clock-rate R (simulated seconds per real
+     second), --tick-store (keep full tick history under data/ticks/),
+     --generate-history YEARS [--bar-minutes M]
+     (write synthetic OHLCV bars to data/history.ohlc and exit).
+    */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fast") || args[i].equals("--tick-store")) opts.put(args[i].substring(2), "true");
+            else if (args[i].startsWith("--") && i + 1 < args.length) opts.put(args[i].substring(2), args[++i]);
+        }
+        if (opts.containsKey("generate-history")) {
+            Utils.ensureDataDir();
+            MarketEngine engine = opts.containsKey("seed") ? new MarketEngine(Long.parseLong(opts.get("seed"))) : new MarketEngine();
+            int years = Integer.parseInt(opts.get("generate-history"));
+            int barMinutes = Integer.parseInt(opts.getOrDefault("bar-minutes", "1"));
+            long t0 = System.nanoTime();
+            long bars = new HistoryGenerator(engine).generate(new File(Utils.HISTORY_FILE), LocalDate.now().minusYears(years), years,
+                    barMinutes, 4, Runtime.getRuntime().availableProcessors());
+            System.out.printf("%d symbols x %d bars -> %s in %.1fs%n", engine.getStocks().size(), bars, Utils.HISTORY_FILE, (System.nanoTime() - t0) / 1e9);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             Utils.ensureDataDir();
-            MarketEngine engine = new MarketEngine();
+            MarketEngine engine = opts.containsKey("seed") ? new MarketEngine(Long.parseLong(opts.get("seed"))) : new MarketEngine();
+            if (opts.containsKey("clock-rate")) engine.clock().setRate(Double.parseDouble(opts.get("clock-rate")));
+            if (opts.containsKey("replay")) engine.replayFrom(new File(opts.get("replay")), !opts.containsKey("fast"));
+            if (opts.containsKey("record")) engine.startRecording(new File(opts.get("record")));
+            if (opts.containsKey("tick-store")) engine.setTickStore(new TickStore(new File(Utils.TICKS_DIR)));
             Controller controller = new Controller(engine);
 
             LoginDialog login = new LoginDialog(controller);
@@ -39,314 +90,4294 @@ public class MainApp {
     }
 }
 
-/* ----------------------- Utils ----------------------- */
-class Utils {
-    public static final String DATA_DIR = "data";
-    public static final String USERS_FILE = DATA_DIR + File.separator + "users.csv";
+/* ----------------------- Utils ----------------------- */
+class Utils {
+    public static final String DATA_DIR = "data";
+    public static final String USERS_FILE = DATA_DIR + File.separator + "users.csv"; // pre-AccountStore format, migrated once
+    public static final String ACCOUNTS_FILE = DATA_DIR + File.separator + "accounts.dat";
+    public static final String UNIVERSE_FILE = DATA_DIR + File.separator + "universe.csv";
+    public static final String HISTORY_FILE = DATA_DIR + File.separator + "history.ohlc";
+    public static final String TICKS_DIR = DATA_DIR + File.separator + "ticks";
+    public static final String JOURNAL_FILE = DATA_DIR + File.separator + "journal.wal";
+    public static final String SNAPSHOT_META = DATA_DIR + File.separator + "snapshot.meta";
+    public static final String KV_DIR = DATA_DIR + File.separator + "kv";
+    private static KvStore kv;
+
+    public static void ensureDataDir() {
+        File d = new File(DATA_DIR);
+        if (!d.exists()) d.mkdirs();
+    }
+
+    public static List<String[]> readCSV(String path) {
+        List<String[]> out = new ArrayList<>();
+        File f = new File(path);
+        if (!f.exists()) return out;
+        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                out.add(line.split(",", -1));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return out;
+    }
+
+    public static void appendLine(String path, String line) {
+        appendLines(path, Collections.singletonList(line));
+    }
+
+    /** Append a batch of lines with one open/close */
+    public static void appendLines(String path, List<String> lines) {
+        if (lines.isEmpty()) return;
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(path, true)))) {
+            for (String l : lines) pw.println(l);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Replace the file in one step: readers and crashes see the old or the new contents, never a mix */
+    public static void writeAll(String path, List<String> lines) {
+        File tmp = new File(path + ".tmp");
+        try (PrintWriter pw = new PrintWriter(new FileWriter(tmp, false))) {
+            for (String l : lines) pw.println(l);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** The shared key/value store, opened on first use; the first open imports the old portfolio_<user>.csv files */
+    public static synchronized KvStore kv() {
+        if (kv == null) {
+            ensureDataDir();
+            try {
+                boolean fresh = !new File(KV_DIR, "MANIFEST").exists();
+                kv = new KvStore(new File(KV_DIR));
+                if (fresh) importPortfolios(kv);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return kv;
+    }
+
+    // highest journal LSN folded into the store, written in the same flush as the rows it covers
+    public static final String APPLIED_LSN_KEY = "journal/lsn";
+
+    // positions: pos/<username>/<symbol> -> qty,avgPrice (to Money.AVG_SCALE)
+    public static String positionKey(String username, String symbol) {
+        return "pos/" + username + "/" + symbol;
+    }
+
+    // trade history: tx/<username>/<journal LSN, 19 digits> -> type,symbol,qty,price,timeNanos (see TxLog)
+    public static String txKey(String username, long lsn) {
+        return txKey(username, String.format("%019d", lsn));
+    }
+
+    public static String txKey(String username, String suffix) {
+        return "tx/" + username + "/" + suffix;
+    }
+
+    /** Rows of symbol, qty, avgPrice */
+    public static List<String[]> loadPortfolio(String username) {
+        List<String[]> out = new ArrayList<>();
+        String prefix = positionKey(username, "");
+        try {
+            for (Map.Entry<String, String> e : kv().scan(prefix).entrySet()) {
+                String symbol = e.getKey().substring(prefix.length());
+                if (symbol.indexOf('/') >= 0) continue; // a longer username that shares this prefix
+                String[] v = e.getValue().split(",", -1);
+                out.add(new String[]{symbol, v[0], v[1]});
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return out;
+    }
+
+    private static void importPortfolios(KvStore store) throws IOException {
+        File[] files = new File(DATA_DIR).listFiles((d, n) -> n.startsWith("portfolio_") && n.endsWith(".csv"));
+        if (files == null || files.length == 0) return;
+        for (File f : files) {
+            String user = f.getName().substring("portfolio_".length(), f.getName().length() - ".csv".length());
+            for (String[] r : readCSV(f.getPath())) if (r.length >= 3) store.put(positionKey(user, r[0]), r[1] + "," + r[2]);
+        }
+        store.flush();
+        for (File f : files) if (!f.renameTo(new File(f.getPath() + ".migrated"))) System.err.println("could not retire " + f);
+    }
+
+    // timestamps: epoch nanos internally, formatted only for display and files
+    public static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public static String formatTime(long epochNanos) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(0, epochNanos), ZoneId.systemDefault()).format(TIMESTAMP);
+    }
+}
+
+/* ----------------------- Symbol Dictionary ----------------------- */
+/**
+ Dense int ids for symbol strings, handed out in first-seen order and never
+ reused. The engine lists its universe first, so ids below the universe size are
+ also quote store ids; symbols seen only in saved portfolios or trades get ids
+ after that. String lookups belong at the UI and file boundaries only.
+*/
+class SymbolDictionary {
+    private volatile String[] names = new String[64];
+    private int[] table = new int[128]; // open addressing on String.hashCode, holds id + 1, 0 = empty
+    private int size;
+
+    public synchronized int size() { return size; }
+
+    /** Id of the symbol, or -1 if it has never been seen */
+    public synchronized int lookup(String symbol) {
+        int mask = table.length - 1;
+        for (int i = symbol.hashCode() & mask; ; i = (i + 1) & mask) {
+            int e = table[i];
+            if (e == 0) return -1;
+            if (names[e - 1].equals(symbol)) return e - 1;
+        }
+    }
+
+    /** Id of the symbol, assigning the next free one if it is new */
+    public synchronized int intern(String symbol) {
+        int id = lookup(symbol);
+        if (id >= 0) return id;
+        id = size;
+        String[] n = names;
+        if (id == n.length) n = Arrays.copyOf(n, id * 2);
+        n[id] = symbol;
+        names = n;
+        size++;
+        if (size * 2 > table.length) rehash(table.length * 2);
+        else insert(table, id);
+        return id;
+    }
+
+    /** Symbol string for an id handed out by this dictionary */
+    public String symbol(int id) { return names[id]; }
+
+    private void rehash(int cap) {
+        int[] t = new int[cap];
+        for (int id = 0; id < size; id++) insert(t, id);
+        table = t;
+    }
+
+    private void insert(int[] t, int id) {
+        int mask = t.length - 1;
+        int i = names[id].hashCode() & mask;
+        while (t[i] != 0) i = (i + 1) & mask;
+        t[i] = id + 1;
+    }
+}
+
+/* ----------------------- Money ----------------------- */
+/**
+ Fixed-point money. Prices, balances and trade values are longs in paise
+ ({@link #SCALE} per rupee); average cost uses the finer {@link #AVG_SCALE} so
+ repeated buys at different prices do not round value away. Scales are powers
+ of ten, and text conversion is exact in both directions.
+*/
+final class Money {
+    static final long SCALE = 100;
+    static final long AVG_SCALE = 10_000;
+
+    private Money() {}
+
+    /** Nearest paise for a model or display price */
+    static long ofRupees(double rupees) { return Math.round(rupees * SCALE); }
+    static double toRupees(long paise) { return paise / (double) SCALE; }
+
+    static String format(long paise) { return format(paise, SCALE); }
+
+    static String format(long units, long scale) {
+        StringBuilder sb = new StringBuilder(24);
+        if (units < 0) sb.append('-');
+        long a = Math.abs(units);
+        sb.append(a / scale);
+        if (scale > 1) {
+            sb.append('.');
+            String frac = Long.toString(a % scale + scale); // leading 1 keeps the zero padding
+            sb.append(frac, 1, frac.length());
+        }
+        return sb.toString();
+    }
+
+    static long parse(String s) { return parse(s, SCALE); }
+
+    /** Parse a plain decimal such as "-12.5" into units of 1/scale, rounding extra digits half up */
+    static long parse(String s, long scale) {
+        s = s.trim();
+        boolean neg = s.startsWith("-");
+        int i = (neg || s.startsWith("+")) ? 1 : 0;
+        if (i == s.length()) throw new NumberFormatException("not a decimal: " + s);
+        long whole = 0, frac = 0, unit = scale;
+        boolean dot = false, round = false, digits = false;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.' && !dot) { dot = true; continue; }
+            if (c < '0' || c > '9') throw new NumberFormatException("not a decimal: " + s);
+            digits = true;
+            int d = c - '0';
+            if (!dot) whole = Math.addExact(Math.multiplyExact(whole, 10), d);
+            else if (unit > 1) { unit /= 10; frac += d * unit; }
+            else if (!round) { round = true; if (d >= 5) frac++; }
+        }
+        if (!digits) throw new NumberFormatException("not a decimal: " + s);
+        long v = Math.addExact(Math.multiplyExact(whole, scale), frac);
+        return neg ? -v : v;
+    }
+
+    /** Convert between scales, rounding half away from zero when precision is lost */
+    static long rescale(long units, long from, long to) {
+        if (to >= from) return Math.multiplyExact(units, to / from);
+        return divRound(units, from / to);
+    }
+
+    static long divRound(long num, long den) {
+        long q = num / den, r = num % den;
+        if (Math.abs(r) * 2 >= den) q += (num < 0) ? -1 : 1;
+        return q;
+    }
+}
+
+/* ----------------------- Models ----------------------- */
+/**
+ Ring of (epoch nanos, price in paise) points holding at most {@code capacity}
+ entries; appends are O(1) and overwrite the oldest point once full. Storage
+ starts small and doubles up to the capacity, so a large universe only pays for
+ the depth its symbols have actually reached. With an archive attached, points
+ leaving the ring are kept compressed instead of discarded.
+*/
+class PriceHistory {
+    private static final int INITIAL = 16;
+    private long[] times, paise;
+    private int capacity, head, size; // head is the next slot to write
+    private CompressedSeries archive;
+
+    PriceHistory(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("history capacity must be positive");
+        this.capacity = capacity;
+        int n = Math.min(INITIAL, capacity);
+        times = new long[n];
+        paise = new long[n];
+    }
+
+    public int size() { return size; }
+    public int capacity() { return capacity; }
+
+    public void append(long timeNanos, long pricePaise) {
+        if (size == times.length && size < capacity) resize(Math.min(capacity, size * 2));
+        if (size == times.length && archive != null) archive.append(times[head], paise[head]);
+        times[head] = timeNanos;
+        paise[head] = pricePaise;
+        head = (head + 1 == times.length) ? 0 : head + 1;
+        if (size < times.length) size++;
+    }
+
+    /** i = 0 is the oldest point */
+    public long time(int i) { return times[slot(i)]; }
+    public long pricePaise(int i) { return paise[slot(i)]; }
+    public double price(int i) { return Money.toRupees(paise[slot(i)]); }
+
+    /** Change the capacity, keeping the newest points that still fit */
+    public void setCapacity(int cap) {
+        if (cap < 1) throw new IllegalArgumentException("history capacity must be positive");
+        capacity = cap;
+        resize(Math.max(Math.min(cap, size), Math.min(INITIAL, cap)));
+    }
+
+    private int slot(int i) {
+        int s = head - size + i;
+        return (s < 0) ? s + times.length : s;
+    }
+
+    public CompressedSeries archive() { return archive; }
+
+    /** Keep up to {@code maxBytes} of evicted points compressed; 0 drops the archive */
+    public void setArchive(long priceQuantum, long maxBytes) {
+        if (maxBytes <= 0) archive = null;
+        else if (archive == null) archive = new CompressedSeries(priceQuantum, maxBytes);
+        else archive.setMaxBytes(maxBytes);
+    }
+
+    private void resize(int n) {
+        int keep = Math.min(size, n);
+        if (archive != null) {
+            for (int i = 0; i < size - keep; i++) archive.append(times[slot(i)], paise[slot(i)]);
+        }
+        long[] t = new long[n], p = new long[n];
+        for (int i = 0; i < keep; i++) {
+            int from = slot(size - keep + i);
+            t[i] = times[from];
+            p[i] = paise[from];
+        }
+        times = t;
+        paise = p;
+        size = keep;
+        head = (keep == n) ? 0 : keep;
+    }
+}
+
+/** Bar widths every symbol aggregates its ticks into, with how many bars each keeps */
+enum BarResolution {
+    SECOND_1("1s", 1, 3600), MINUTE_1("1m", 60, 1440), MINUTE_15("15m", 900, 672),
+    HOUR_1("1h", 3600, 720), DAY_1("1d", 86400, 750);
+
+    private static final ZoneRules ZONE = ZoneId.systemDefault().getRules();
+    private static volatile OffsetSpan span = OffsetSpan.at(System.currentTimeMillis() * 1_000_000L);
+
+    /** A stretch of time between two of the zone's transitions, and the UTC offset in force across it */
+    private static final class OffsetSpan {
+        final long from, to, offset; // epoch nanos [from, to), offset in nanos
+
+        OffsetSpan(long from, long to, long offset) {
+            this.from = from;
+            this.to = to;
+            this.offset = offset;
+        }
+
+        static OffsetSpan at(long timeNanos) {
+            Instant t = Instant.ofEpochSecond(Math.floorDiv(timeNanos, 1_000_000_000L), Math.floorMod(timeNanos, 1_000_000_000L));
+            ZoneOffsetTransition prev = ZONE.previousTransition(t.plusNanos(1)), next = ZONE.nextTransition(t);
+            return new OffsetSpan((prev != null) ? nanos(prev.getInstant()) : Long.MIN_VALUE, (next != null) ? nanos(next.getInstant()) : Long.MAX_VALUE,
+                    ZONE.getOffset(t).getTotalSeconds() * 1_000_000_000L);
+        }
+
+        private static long nanos(Instant i) { return i.getEpochSecond() * 1_000_000_000L + i.getNano(); }
+    }
+
+    /**
+     Local UTC offset in nanos in force at {@code timeNanos}. Ticks arrive in time order,
+     so the span between transitions is cached and ZoneRules is asked only when a tick
+     leaves it, i.e. across a DST change.
+    */
+    static long localOffset(long timeNanos) {
+        OffsetSpan s = span;
+        if (timeNanos < s.from || timeNanos >= s.to) span = s = OffsetSpan.at(timeNanos);
+        return s.offset;
+    }
+
+    /**
+     Start of the bar of width {@code width} holding {@code timeNanos}. Bars align to local
+     wall-clock boundaries, so daily bars start at local midnight; the boundary is turned
+     back into an instant with the offset in force at the boundary itself, which differs
+     from the tick's own on the day of a DST change.
+    */
+    static long bucket(long timeNanos, long width) {
+        long off = localOffset(timeNanos);
+        long local = Math.floorDiv(timeNanos + off, width) * width;
+        long start = local - off;
+        long at = localOffset(start);
+        return (at == off) ? start : local - at;
+    }
+
+    /** Local calendar day holding {@code timeNanos}, as days since the epoch */
+    static long localDay(long timeNanos) {
+        return Math.floorDiv(timeNanos + localOffset(timeNanos), DAY_1.nanos);
+    }
+
+    final String label;
+    final long nanos;
+    final int capacity;
+
+    BarResolution(String label, long seconds, int capacity) {
+        this.label = label;
+        this.nanos = seconds * 1_000_000_000L;
+        this.capacity = capacity;
+    }
+
+    @Override public String toString() { return label; }
+}
+
+/**
+ Ring of OHLCV bars at one resolution, packed {@link #FIELDS} longs per bar (start
+ time in epoch nanos, prices in paise). A tick, or a closed bar from a finer series,
+ either extends the newest bar or opens the next one, so maintenance is O(1);
+ storage grows like {@link PriceHistory}.
+*/
+class BarSeries {
+    static final int START = 0, OPEN = 1, HIGH = 2, LOW = 3, CLOSE = 4, VOLUME = 5, FIELDS = 6;
+    private static final int INITIAL = 2;
+    private final long width;
+    private final int capacity;
+    private long[] bars = new long[INITIAL * FIELDS];
+    private int head, size; // head is the next bar slot to write
+
+    BarSeries(BarResolution res) {
+        width = res.nanos;
+        capacity = res.capacity;
+    }
+
+    public int size() { return size; }
+    public int capacity() { return capacity; }
+
+    /** Start of the bar that {@code timeNanos} falls in */
+    public long bucket(long timeNanos) {
+        return BarResolution.bucket(timeNanos, width);
+    }
+
+    /** True if the tick closed the previous bar, which is then bar {@code size() - 2} */
+    public boolean onTick(long timeNanos, long pricePaise, long volume) {
+        return onBar(timeNanos, pricePaise, pricePaise, pricePaise, pricePaise, volume);
+    }
+
+    /** Fold in a bar from a finer series; true if it closed the previous bar, as for {@link #onTick} */
+    public boolean onBar(long start, long open, long high, long low, long close, long volume) {
+        start = bucket(start); // compared by bucket, not by width: a local day is 23 or 25 hours across a DST change
+        if (size > 0) {
+            int b = slot(size - 1) * FIELDS;
+            if (start == bars[b + START]) {
+                if (high > bars[b + HIGH]) bars[b + HIGH] = high;
+                if (low < bars[b + LOW]) bars[b + LOW] = low;
+                bars[b + CLOSE] = close;
+                bars[b + VOLUME] += volume;
+                return false;
+            }
+        }
+        int slots = bars.length / FIELDS;
+        if (size == slots && size < capacity) {
+            resize(Math.min(capacity, size * 2));
+            slots = bars.length / FIELDS;
+        }
+        int b = head * FIELDS;
+        bars[b + START] = start;
+        bars[b + OPEN] = open;
+        bars[b + HIGH] = high;
+        bars[b + LOW] = low;
+        bars[b + CLOSE] = close;
+        bars[b + VOLUME] = volume;
+        head = (head + 1 == slots) ? 0 : head + 1;
+        if (size < slots) size++;
+        return size > 1;
+    }
+
+    /** Field {@code f} of bar {@code i}, where i = 0 is the oldest bar */
+    public long get(int i, int f) { return bars[slot(i) * FIELDS + f]; }
+
+    /** Index of the first bar starting at or after {@code timeNanos} (size() if none) */
+    public int indexOf(long timeNanos) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid, START) < timeNanos) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private int slot(int i) {
+        int s = head - size + i, slots = bars.length / FIELDS;
+        return (s < 0) ? s + slots : s;
+    }
+
+    private void resize(int n) {
+        long[] b = new long[n * FIELDS];
+        for (int i = 0; i < size; i++) System.arraycopy(bars, slot(i) * FIELDS, b, i * FIELDS, FIELDS);
+        bars = b;
+        head = (size == n) ? 0 : size;
+    }
+}
+
+/** Caller-owned, reusable destination for {@link Stock#copyBars} */
+class BarBuffer {
+    final long[] start, volume;
+    final double[] open, high, low, close;
+    int size;
+
+    BarBuffer(int capacity) {
+        start = new long[capacity];
+        volume = new long[capacity];
+        open = new double[capacity];
+        high = new double[capacity];
+        low = new double[capacity];
+        close = new double[capacity];
+    }
+
+    public int capacity() { return start.length; }
+}
+
+/**
+ Extreme of the last {@code window} points, kept as a monotonic deque of
+ (sequence, paise) pairs: each push evicts dominated and expired entries, so
+ updates are amortised O(1) and the extreme is always at the front.
+*/
+class MonotonicDeque {
+    private static final int INITIAL = 4;
+    private final boolean max;
+    private int window;
+    private long[] seqs = new long[INITIAL], vals = new long[INITIAL];
+    private int head, size;
+
+    MonotonicDeque(boolean max, int window) {
+        this.max = max;
+        this.window = window;
+    }
+
+    public void push(long seq, long v) {
+        while (size > 0) {
+            long back = vals[slot(size - 1)];
+            if (max ? back > v : back < v) break;
+            size--;
+        }
+        if (size == seqs.length) grow();
+        int s = slot(size);
+        seqs[s] = seq;
+        vals[s] = v;
+        size++;
+        while (seqs[head] <= seq - window) {
+            head = (head + 1 == seqs.length) ? 0 : head + 1;
+            size--;
+        }
+    }
+
+    /** Current extreme; only meaningful after at least one push */
+    public long peek() { return vals[head]; }
+
+    /** Extreme among entries newer than {@code expiredSeq}, or {@code none}; unlike push, changes nothing */
+    public long peekAfter(long expiredSeq, long none) {
+        for (int i = 0; i < size; i++) {
+            int s = slot(i);
+            if (seqs[s] > expiredSeq) return vals[s];
+        }
+        return none;
+    }
+
+    public void reset(int newWindow) {
+        window = newWindow;
+        head = size = 0;
+    }
+
+    private int slot(int i) {
+        int s = head + i;
+        return (s >= seqs.length) ? s - seqs.length : s;
+    }
+
+    private void grow() {
+        int n = seqs.length * 2;
+        long[] sq = new long[n], v = new long[n];
+        for (int i = 0; i < size; i++) {
+            sq[i] = seqs[slot(i)];
+            v[i] = vals[slot(i)];
+        }
+        seqs = sq;
+        vals = v;
+        head = 0;
+    }
+}
+
+/**
+ Per-symbol running statistics, all O(1) per point: session open/high/low and VWAP
+ reset when the sim clock crosses local midnight, plus the min/max over the points
+ still held in the symbol's history. Readers can ask for either as they will be once
+ a batch of not-yet-applied (time, paise, volume) triples is folded in.
+*/
+class RollingStats {
+    /** Session open/high/low/volume/turnover; small enough to copy for a what-if read */
+    static final class Session {
+        long day = Long.MIN_VALUE, open, high, low, volume;
+        double turnover; // sum of price * volume this session, in paise
+
+        void apply(long timeNanos, long paise, long vol) {
+            long d = BarResolution.localDay(timeNanos);
+            if (d != day) {
+                day = d;
+                open = high = low = paise;
+                turnover = 0;
+                volume = 0;
+            } else {
+                if (paise > high) high = paise;
+                if (paise < low) low = paise;
+            }
+            turnover += (double) paise * vol;
+            volume += vol;
+        }
+
+        Session copy() {
+            Session s = new Session();
+            s.day = day;
+            s.open = open;
+            s.high = high;
+            s.low = low;
+            s.volume = volume;
+            s.turnover = turnover;
+            return s;
+        }
+
+        /** Volume-weighted average price in paise, or the session open before any volume trades */
+        double vwap() { return (volume > 0) ? turnover / volume : open; }
+    }
+
+    private final Session session = new Session();
+    private long seq;
+    private int window;
+    private final MonotonicDeque windowMax, windowMin;
+
+    RollingStats(int window) {
+        this.window = window;
+        windowMax = new MonotonicDeque(true, window);
+        windowMin = new MonotonicDeque(false, window);
+    }
+
+    public void onTick(long timeNanos, long paise, long vol) {
+        session.apply(timeNanos, paise, vol);
+        pushWindow(paise);
+    }
+
+    /** Feed the window only, used when re-seeding it from a resized history */
+    public void pushWindow(long paise) {
+        seq++;
+        windowMax.push(seq, paise);
+        windowMin.push(seq, paise);
+    }
+
+    public void resetWindow(int window) {
+        this.window = window;
+        windowMax.reset(window);
+        windowMin.reset(window);
+    }
+
+    /** The session after the first {@code n} triples of {@code pending}; this object is not changed */
+    public Session session(long[] pending, int n) {
+        Session s = session.copy();
+        for (int i = 0; i < n; i++) s.apply(pending[3 * i], pending[3 * i + 1], pending[3 * i + 2]);
+        return s;
+    }
+
+    /** Window high ({@code max}) or low after the first {@code n} triples of {@code pending}, without applying them */
+    public long windowExtreme(boolean max, long[] pending, int n) {
+        long r = (max ? windowMax : windowMin).peekAfter(seq + n - window, max ? Long.MIN_VALUE : Long.MAX_VALUE);
+        for (int i = Math.max(0, n - window); i < n; i++) {
+            long p = pending[3 * i + 1];
+            r = max ? Math.max(r, p) : Math.min(r, p);
+        }
+        return r;
+    }
+}
+
+/**
+ Receives a history window oldest first; begin() restarts it when a concurrent tick
+ forced a re-read, and carries the low/high of everything the history still holds.
+*/
+interface HistoryVisitor {
+    void begin(int count, long lowPaise, long highPaise);
+    void point(int i, long timeNanos, long pricePaise);
+}
+
+/**
+ Thin per-symbol view over the engine's columnar {@link QuoteStore}.
+ History and bars are guarded by a seqlock with one writer at a time: the engine's
+ tick is the only writer on the hot path and just makes {@code version} odd while
+ it mutates; the rare setters take {@code writeLock} (the engine, which the tick
+ holds throughout) to keep out of its way. Readers run optimistically and retry if
+ the version moved, falling back to {@code writeLock} only when writers keep winning.
+*/
+class Stock {
+    static final int DEFAULT_HISTORY = 200;
+
+    private final QuoteStore quotes;
+    private final int id;
+    private final String name;
+    private final String symbol;
+    private final String sector;
+    private final PriceHistory history;
+    private final BarSeries[] bars = new BarSeries[BarResolution.values().length];
+    private final RollingStats stats;
+    private static final int OPTIMISTIC_TRIES = 8;
+    private volatile long version; // odd while a writer is mid-update
+    private final Object writeLock;
+    // ticks reach bars and stats in batches: (time, paise, volume) triples wait here until a fold
+    static final int FOLD_BATCH = 32;
+    private final long[] pending = new long[3 * FOLD_BATCH];
+    private int pendingCount, foldAt;
+
+    public Stock(QuoteStore quotes, int id, String name, String symbol, String sector, long listedAt, int historyCapacity, Object writeLock) {
+        this.quotes = quotes;
+        this.writeLock = writeLock;
+        this.id = id;
+        this.name = name;
+        this.symbol = symbol;
+        this.sector = sector;
+        history = new PriceHistory(historyCapacity);
+        stats = new RollingStats(historyCapacity);
+        history.append(listedAt, quotes.paise[id]);
+        stats.onTick(listedAt, quotes.paise[id], 0);
+        for (BarResolution r : BarResolution.values()) bars[r.ordinal()] = new BarSeries(r);
+        foldAt = 1 + id % FOLD_BATCH; // staggered, so each tick folds about 1/FOLD_BATCH of the symbols
+    }
+
+    public int getId() { return id; }
+    public String getName() { return name; }
+    public String getSymbol() { return symbol; }
+    public String getSector() { return sector; }
+    public long getPricePaise() { return quotes.paise[id]; }
+    public long getLastPricePaise() { return quotes.lastPaise[id]; }
+    /** Listing price in rupees, the level mean-reverting models pull back towards; fixed at listing */
+    public double getBasePrice() { return quotes.basePrice[id]; }
+    public double getPrice() { return Money.toRupees(quotes.paise[id]); }
+    public double getLastPrice() { return Money.toRupees(quotes.lastPaise[id]); }
+    public long getTickSeq() { return quotes.seq[id]; }
+
+    public void setPrice(double p, long timeNanos) {
+        synchronized (writeLock) {
+            quotes.set(id, p);
+            beginWrite();
+            addPoint(timeNanos, quotes.paise[id], 0);
+            endWrite();
+        }
+    }
+
+    /** Called by the engine's tick, under its lock, after it has written this symbol's new quote into the store */
+    void recordTick(long timeNanos) {
+        beginWrite();
+        addPoint(timeNanos, quotes.paise[id], quotes.volume[id]);
+        endWrite();
+    }
+
+    // one writer at a time (see the class comment), so the plain increments cannot race each other
+    private void beginWrite() {
+        version = version + 1;
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() { version = version + 1; }
+
+    /**
+     Run a read of history/bars against a consistent state. A torn read may index
+     past a ring that is being resized; that is treated like any other retry.
+    */
+    private long read(LongSupplier body) {
+        for (int attempt = 0; attempt < OPTIMISTIC_TRIES; attempt++) {
+            long v = version;
+            if ((v & 1) != 0) { Thread.onSpinWait(); continue; }
+            long r;
+            try { r = body.getAsLong(); } catch (IndexOutOfBoundsException torn) { continue; }
+            VarHandle.acquireFence();
+            if (version == v) return r;
+        }
+        synchronized (writeLock) { return body.getAsLong(); }
+    }
+
+    /**
+     History takes every point at once; bars and stats take them a batch at a time, which
+     keeps the tick to one small append per symbol and touches each symbol's bar rings
+     and deques once per batch. Readers merge in the pending points, so nothing shows up late.
+    */
+    private void addPoint(long time, long paise, long volume) {
+        history.append(time, paise);
+        int p = 3 * pendingCount++;
+        pending[p] = time;
+        pending[p + 1] = paise;
+        pending[p + 2] = volume;
+        if (pendingCount >= foldAt) fold();
+    }
+
+    /** Ticks go into the finest bars only; coarser series take each finer bar once it closes */
+    private void fold() {
+        for (int i = 0; i < pendingCount; i++) {
+            long t = pending[3 * i], p = pending[3 * i + 1], v = pending[3 * i + 2];
+            if (bars[0].onTick(t, p, v)) rollUp();
+            stats.onTick(t, p, v);
+        }
+        pendingCount = 0;
+        foldAt = FOLD_BATCH;
+    }
+
+    private void rollUp() {
+        for (int level = 0; level + 1 < bars.length; level++) {
+            BarSeries f = bars[level];
+            int k = f.size() - 2;
+            if (!bars[level + 1].onBar(f.get(k, BarSeries.START), f.get(k, BarSeries.OPEN), f.get(k, BarSeries.HIGH),
+                    f.get(k, BarSeries.LOW), f.get(k, BarSeries.CLOSE), f.get(k, BarSeries.VOLUME))) return;
+        }
+    }
+
+    public int getHistorySize() { return (int) read(history::size); }
+
+    public void setHistoryCapacity(int points) {
+        synchronized (writeLock) {
+            beginWrite();
+            fold(); // the window is re-seeded from history below, so nothing may still be pending
+            history.setCapacity(points);
+            stats.resetWindow(points);
+            for (int i = 0; i < history.size(); i++) stats.pushWindow(history.pricePaise(i));
+            endWrite();
+        }
+    }
+
+    /** Keep up to {@code bytes} of points evicted from the history ring, compressed; 0 turns it off */
+    public void setHistoryArchive(long bytes) {
+        synchronized (writeLock) {
+            beginWrite();
+            history.setArchive(quotes.tickPaise[id], bytes);
+            endWrite();
+        }
+    }
+
+    public long getArchiveBytes() {
+        synchronized (writeLock) {
+            CompressedSeries a = history.archive();
+            return (a != null) ? a.encodedBytes() : 0;
+        }
+    }
+
+    /**
+     Visit every retained point oldest first, archived ones included. The archive's
+     blocks and a copy of the ring are taken under {@code writeLock}; decoding runs outside it.
+    */
+    public void scanHistory(TickVisitor v) {
+        ByteBuffer[] blocks = new ByteBuffer[0];
+        TickCodec.Decoder d = null;
+        long[] times, paise;
+        synchronized (writeLock) {
+            CompressedSeries a = history.archive();
+            if (a != null) {
+                blocks = a.views();
+                d = a.decoder();
+            }
+            times = new long[history.size()];
+            paise = new long[times.length];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = history.time(i);
+                paise[i] = history.pricePaise(i);
+            }
+        }
+        for (ByteBuffer b : blocks) {
+            d.reset();
+            while (d.next(b)) v.tick(d.time, d.paise);
+        }
+        for (int i = 0; i < times.length; i++) v.tick(times[i], paise[i]);
+    }
+
+    /**
+     Visit up to {@code maxPoints} of the newest history points, oldest first, in place:
+     nothing is copied and tick writers are never blocked. Returns the count visited.
+    */
+    public int readHistory(int maxPoints, HistoryVisitor v) {
+        return (int) read(() -> {
+            int size = history.size(), n = Math.min(size, maxPoints), skip = size - n;
+            v.begin(n, stats.windowExtreme(false, pending, pendingCount), stats.windowExtreme(true, pending, pendingCount));
+            for (int i = 0; i < n; i++) v.point(i, history.time(skip + i), history.pricePaise(skip + i));
+            return n;
+        });
+    }
+
+    /**
+     Copy up to {@code prices.length} of the newest history points, oldest first, into
+     caller-owned arrays (either may be null) and return how many were copied.
+    */
+    public int copyHistory(long[] times, double[] prices) {
+        int cap = (prices != null) ? prices.length : (times != null ? times.length : 0);
+        return (int) read(() -> {
+            int n = Math.min(history.size(), cap), skip = history.size() - n;
+            for (int i = 0; i < n; i++) {
+                if (times != null) times[i] = history.time(skip + i);
+                if (prices != null) prices[i] = history.price(skip + i);
+            }
+            return n;
+        });
+    }
+
+    public int getBarCount(BarResolution res) {
+        int level = res.ordinal();
+        return (int) read(() -> {
+            BarSeries b = bars[level];
+            int n = b.size();
+            long last = (n > 0) ? b.get(n - 1, BarSeries.START) : 0;
+            for (int k = level - 1; k >= -pendingCount; k--) { // open finer bars not rolled up yet, then pending ticks
+                long start;
+                if (k >= 0) {
+                    BarSeries f = bars[k];
+                    if (f.size() == 0) continue;
+                    start = b.bucket(f.get(f.size() - 1, BarSeries.START));
+                } else {
+                    start = b.bucket(pending[3 * (-1 - k)]);
+                }
+                if (n == 0 || start != last) {
+                    n++;
+                    last = start;
+                }
+            }
+            return Math.min(n, b.capacity());
+        });
+    }
+
+    /**
+     Copy the bars at {@code res} starting in [fromNanos, toNanos), oldest first, into
+     {@code out}; when more match than it holds, the newest ones win. Returns the count.
+     The newest coarse bar is completed from the finer bars that have not closed yet
+     and from ticks still waiting for a fold.
+    */
+    public int copyBars(BarResolution res, long fromNanos, long toNanos, BarBuffer out) {
+        int level = res.ordinal();
+        return (int) read(() -> {
+            BarSeries b = bars[level];
+            copyBars(b, fromNanos, toNanos, out);
+            for (int k = level - 1; k >= 0; k--) {
+                BarSeries f = bars[k];
+                if (f.size() == 0) continue;
+                int i = f.size() - 1;
+                long start = b.bucket(f.get(i, BarSeries.START));
+                if (start >= fromNanos && start < toNanos) mergeBar(out, start, f.get(i, BarSeries.OPEN), f.get(i, BarSeries.HIGH),
+                        f.get(i, BarSeries.LOW), f.get(i, BarSeries.CLOSE), f.get(i, BarSeries.VOLUME));
+            }
+            for (int i = 0; i < pendingCount; i++) {
+                long start = b.bucket(pending[3 * i]), p = pending[3 * i + 1];
+                if (start >= fromNanos && start < toNanos) mergeBar(out, start, p, p, p, p, pending[3 * i + 2]);
+            }
+            return out.size;
+        });
+    }
+
+    /** Extend the newest bar in {@code out} if it starts at {@code start}, else append one, dropping the oldest when full */
+    private static void mergeBar(BarBuffer out, long start, long open, long high, long low, long close, long volume) {
+        int n = out.size;
+        if (n > 0 && out.start[n - 1] == start) {
+            out.high[n - 1] = Math.max(out.high[n - 1], Money.toRupees(high));
+            out.low[n - 1] = Math.min(out.low[n - 1], Money.toRupees(low));
+            out.close[n - 1] = Money.toRupees(close);
+            out.volume[n - 1] += volume;
+            return;
+        }
+        if (out.capacity() == 0) return;
+        if (n == out.capacity()) {
+            n--;
+            System.arraycopy(out.start, 1, out.start, 0, n);
+            System.arraycopy(out.open, 1, out.open, 0, n);
+            System.arraycopy(out.high, 1, out.high, 0, n);
+            System.arraycopy(out.low, 1, out.low, 0, n);
+            System.arraycopy(out.close, 1, out.close, 0, n);
+            System.arraycopy(out.volume, 1, out.volume, 0, n);
+        }
+        out.start[n] = start;
+        out.open[n] = Money.toRupees(open);
+        out.high[n] = Money.toRupees(high);
+        out.low[n] = Money.toRupees(low);
+        out.close[n] = Money.toRupees(close);
+        out.volume[n] = volume;
+        out.size = n + 1;
+    }
+
+    private static int copyBars(BarSeries b, long fromNanos, long toNanos, BarBuffer out) {
+        int lo = b.indexOf(fromNanos), hi = b.indexOf(toNanos);
+        lo = Math.max(lo, hi - out.capacity());
+        int n = Math.max(0, hi - lo);
+        for (int i = 0; i < n; i++) {
+            int k = lo + i;
+            out.start[i] = b.get(k, BarSeries.START);
+            out.open[i] = Money.toRupees(b.get(k, BarSeries.OPEN));
+            out.high[i] = Money.toRupees(b.get(k, BarSeries.HIGH));
+            out.low[i] = Money.toRupees(b.get(k, BarSeries.LOW));
+            out.close[i] = Money.toRupees(b.get(k, BarSeries.CLOSE));
+            out.volume[i] = b.get(k, BarSeries.VOLUME);
+        }
+        out.size = n;
+        return n;
+    }
+
+    public long getSessionOpen() { return read(() -> stats.session(pending, pendingCount).open); }
+    public long getSessionHigh() { return read(() -> stats.session(pending, pendingCount).high); }
+    public long getSessionLow() { return read(() -> stats.session(pending, pendingCount).low); }
+    public long getSessionVolume() { return read(() -> stats.session(pending, pendingCount).volume); }
+    /** VWAP in paise, fractional since it is an average */
+    public double getVwap() { return Double.longBitsToDouble(read(() -> Double.doubleToRawLongBits(stats.session(pending, pendingCount).vwap()))); }
+    /** Low/high over the points currently held in history, in paise */
+    public long getWindowLow() { return read(() -> stats.windowExtreme(false, pending, pendingCount)); }
+    public long getWindowHigh() { return read(() -> stats.windowExtreme(true, pending, pendingCount)); }
+
+    /** Change since the session open, so it stays meaningful after the history ring rolls */
+    public double getDailyChangePercent() {
+        long open = getSessionOpen();
+        if (open <= 0) return 0.0;
+        return (getPricePaise() - open) * 100.0 / open;
+    }
+}
+
+class PortfolioItem {
+    private final int symbolId;
+    private int quantity;
+    private long avgCost; // units of 1/Money.AVG_SCALE rupee
+
+    public PortfolioItem(int symbolId, int quantity, long avgCost) {
+        this.symbolId = symbolId;
+        this.quantity = quantity;
+        this.avgCost = avgCost;
+    }
+
+    public int getSymbolId() { return symbolId; }
+    public int getQuantity() { return quantity; }
+    /** Average cost per share in units of 1/{@link Money#AVG_SCALE} rupee */
+    public long getAvgCost() { return avgCost; }
+    /** Cost basis of the whole position in paise */
+    public long getCostPaise() { return Money.rescale(avgCost * quantity, Money.AVG_SCALE, Money.SCALE); }
+
+    public void addQuantity(int q, long pricePaise) {
+        long totalCost = avgCost * quantity + Money.rescale(pricePaise, Money.SCALE, Money.AVG_SCALE) * q;
+        quantity += q;
+        avgCost = (quantity == 0) ? 0 : Money.divRound(totalCost, quantity);
+    }
+
+    public boolean removeQuantity(int q) {
+        if (q > quantity) return false;
+        quantity -= q;
+        return true;
+    }
+}
+
+/** Open positions keyed by symbol id, iterated in the order they were opened */
+class Positions {
+    private PortfolioItem[] bySymbol = new PortfolioItem[64];
+    private final List<PortfolioItem> open = new ArrayList<>();
+
+    public PortfolioItem get(int symbolId) {
+        return (symbolId < bySymbol.length) ? bySymbol[symbolId] : null;
+    }
+
+    public void put(PortfolioItem it) {
+        int id = it.getSymbolId();
+        if (id >= bySymbol.length) bySymbol = Arrays.copyOf(bySymbol, Math.max(id + 1, bySymbol.length * 2));
+        if (bySymbol[id] != null) open.remove(bySymbol[id]);
+        bySymbol[id] = it;
+        open.add(it);
+    }
+
+    public void remove(int symbolId) {
+        PortfolioItem it = get(symbolId);
+        if (it == null) return;
+        bySymbol[symbolId] = null;
+        open.remove(it);
+    }
+
+    public void clear() {
+        Arrays.fill(bySymbol, null);
+        open.clear();
+    }
+
+    public List<PortfolioItem> values() { return Collections.unmodifiableList(open); }
+}
+
+class Transaction {
+    private final String type; // BUY / SELL
+    private final int symbolId;
+    private final int quantity;
+    private final long price; // paise
+    private final long timeNanos;
+
+    public Transaction(String type, int symbolId, int quantity, long price, long timeNanos) {
+        this.type = type;
+        this.symbolId = symbolId;
+        this.quantity = quantity;
+        this.price = price;
+        this.timeNanos = timeNanos;
+    }
+
+    public String getType() { return type; }
+    public int getSymbolId() { return symbolId; }
+    public int getQuantity() { return quantity; }
+    /** Price per share in paise */
+    public long getPrice() { return price; }
+    /** Epoch nanos on the engine's SimClock; format with {@link Utils#formatTime} */
+    public long getTimeNanos() { return timeNanos; }
+}
+
+class User {
+    private final String username;
+    private final String password;
+    private long balance; // paise
+
+    public User(String username, String password, long balance) {
+        this.username = username;
+        this.password = password;
+        this.balance = balance;
+    }
+
+    public String getUsername() { return username; }
+    public String getPassword() { return password; }
+
+    /** Balance in paise */
+    public synchronized long getBalance() { return balance; }
+    public synchronized void deposit(long amt) { balance += amt; }
+    public synchronized boolean withdraw(long amt) {
+        if (amt <= balance) { balance -= amt; return true; }
+        return false;
+    }
+}
+
+/* ----------------------- Quote Store ----------------------- */
+/**
+ Columnar quote state for the whole symbol universe, indexed by int symbol id.
+ Written only by the tick thread; readers see a tick's writes through the
+ happens-before edge of the onTick hand-off (e.g. SwingUtilities.invokeLater).
+*/
+class QuoteStore {
+    long[] paise = new long[64];          // the quote: fixed-point, snapped to the tick size
+    long[] lastPaise = new long[64];
+    double[] price = new double[64];      // the same quote in rupees, the price models' working column
+    double[] lastPrice = new double[64];
+    long[] seq = new long[64];
+    double[] basePrice = new double[64]; // listing price, the long-run level for mean-reverting models
+    double[] logBase = new double[64];   // log(basePrice), so mean-reverting models skip a log per tick
+    double[] logPrice = new double[64];  // unrounded log price a log-space model last produced...
+    long[] logSeq = new long[64];        // ...valid while seq still equals this; any other quote change invalidates it
+    int[] sector = new int[64];
+    long[] tickPaise = new long[64];     // minimum price increment in paise
+    double[] shock = new double[64];     // per-tick N(0,1) draws, scratch for price models
+    long[] volume = new long[64];        // shares traded on the latest tick (synthetic)
+    private int size;
+
+    public int size() { return size; }
+
+    /** Append a new symbol and return its id */
+    public int add(long initialPaise, int sectorId, long tick) {
+        if (size == price.length) {
+            int cap = size * 2;
+            paise = Arrays.copyOf(paise, cap);
+            lastPaise = Arrays.copyOf(lastPaise, cap);
+            price = Arrays.copyOf(price, cap);
+            lastPrice = Arrays.copyOf(lastPrice, cap);
+            seq = Arrays.copyOf(seq, cap);
+            basePrice = Arrays.copyOf(basePrice, cap);
+            logBase = Arrays.copyOf(logBase, cap);
+            logPrice = Arrays.copyOf(logPrice, cap);
+            logSeq = Arrays.copyOf(logSeq, cap);
+            sector = Arrays.copyOf(sector, cap);
+            tickPaise = Arrays.copyOf(tickPaise, cap);
+            shock = Arrays.copyOf(shock, cap);
+            volume = Arrays.copyOf(volume, cap);
+        }
+        tickPaise[size] = tick;
+        paise[size] = lastPaise[size] = roundPaise(size, initialPaise / (double) Money.SCALE);
+        price[size] = Money.toRupees(paise[size]);
+        lastPrice[size] = price[size];
+        basePrice[size] = price[size];
+        logBase[size] = Math.log(basePrice[size]);
+        logSeq[size] = -1;
+        sector[size] = sectorId;
+        return size++;
+    }
+
+    public void set(int id, double p) {
+        lastPaise[id] = paise[id];
+        lastPrice[id] = price[id];
+        paise[id] = roundPaise(id, p);
+        price[id] = Money.toRupees(paise[id]);
+        seq[id]++;
+    }
+
+    /** Snap a model price to the symbol's tick size, never below one tick */
+    long roundPaise(int id, double p) {
+        long t = tickPaise[id];
+        return Math.max(1, Math.round(p * Money.SCALE / t)) * t;
+    }
+
+    double round(int id, double p) { return Money.toRupees(roundPaise(id, p)); }
+}
+
+/* ----------------------- Tick RNG ----------------------- */
+/**
+ Counter-based generator: every draw is a pure function of (seed, symbol id,
+ tick, draw index), so a seed reproduces the same prices however the symbol
+ universe is split across threads.
+*/
+final class TickRandom {
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private TickRandom() {}
+
+    /** Per-symbol, per-tick stream key; pass it to {@link #uniform(long, int)} */
+    static long key(long seed, int id, long tick) {
+        return mix(seed ^ mix(tick * GOLDEN + id));
+    }
+
+    /** Uniform double in [0, 1) for the given stream key and draw index */
+    static double uniform(long key, int draw) {
+        return (mix(key + (draw + 1) * GOLDEN) >>> 11) * 0x1.0p-53;
+    }
+
+    // inverse normal CDF sampled at 4096 evenly spaced probabilities, interpolated linearly
+    private static final int NORMAL_BITS = 12;
+    private static final double[] NORMAL = quantiles(z -> z);
+
+    /** Table of f(z) at the normal quantiles {@link #draw} interpolates between; build once, outside the tick */
+    static double[] quantiles(DoubleUnaryOperator f) {
+        int n = 1 << NORMAL_BITS;
+        double[] t = new double[n + 1];
+        for (int i = 0; i <= n; i++) t[i] = f.applyAsDouble(inverseNormal((i + 0.5) / (n + 1)));
+        return t;
+    }
+
+    /** Standard normal draw: one hash and a table lookup, no log/sqrt/trig on the tick path */
+    static double gaussian(long key, int draw) { return draw(key, draw, NORMAL); }
+
+    /** f(z) for a standard normal z, where {@code table} came from {@link #quantiles(DoubleUnaryOperator)} */
+    static double draw(long key, int draw, double[] table) {
+        long bits = mix(key + (draw + 1) * GOLDEN);
+        int idx = (int) (bits >>> (64 - NORMAL_BITS));
+        double frac = (bits & 0xFFFFFFFFL) * 0x1.0p-32;
+        double lo = table[idx];
+        return lo + frac * (table[idx + 1] - lo);
+    }
+
+    // Acklam's rational approximation, only used to build the table
+    private static double inverseNormal(double p) {
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        if (p < 0.02425) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5]) / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+        }
+        if (p > 1 - 0.02425) return -inverseNormal(1 - p);
+        double q = p - 0.5, r = q * q;
+        return (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5]) * q / (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+    }
+
+    // SplitMix64 finalizer
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/* ----------------------- Price Models ----------------------- */
+/**
+ Bulk price dynamics. A model advances a contiguous id range in one call, reading
+ the previous price from {@code q.lastPrice} and writing the unrounded new price
+ to {@code q.price}. If {@link #usesShocks()} the engine has already filled
+ {@code q.shock} with N(0,1) draws for the range. Loops stay branch-light over
+ primitive arrays so the JIT can unroll and vectorise them.
+*/
+interface PriceModel {
+    /** @param dt length of one tick in trading years */
+    void advance(QuoteStore q, int from, int to, long seed, long tick, double dt);
+
+    default boolean usesShocks() { return true; }
+}
+
+/** The original dynamics: uniform ±2% step with a 3% chance of a ±4% spike */
+class UniformStepModel implements PriceModel {
+    @Override
+    public void advance(QuoteStore q, int from, int to, long seed, long tick, double dt) {
+        double[] last = q.lastPrice, price = q.price;
+        for (int i = from; i < to; i++) {
+            long key = TickRandom.key(seed, i, tick);
+            double p = last[i];
+            double pctChange = (TickRandom.uniform(key, 0) * 4.0) - 2.0; // -2% to +2%
+            double newPrice = p + p * pctChange / 100.0;
+            if (TickRandom.uniform(key, 1) < 0.03) {
+                newPrice *= (1 + (TickRandom.uniform(key, 2) * 0.08 - 0.04)); // random spike
+            }
+            price[i] = newPrice;
+        }
+    }
+
+    @Override
+    public boolean usesShocks() { return false; }
+}
+
+/** Geometric Brownian motion with annual drift and volatility */
+class GbmModel implements PriceModel {
+    final double mu, sigma;
+
+    GbmModel(double mu, double sigma) { this.mu = mu; this.sigma = sigma; }
+
+    @Override
+    public void advance(QuoteStore q, int from, int to, long seed, long tick, double dt) {
+        double drift = (mu - 0.5 * sigma * sigma) * dt, vol = sigma * Math.sqrt(dt);
+        double[] last = q.lastPrice, price = q.price, z = q.shock;
+        for (int i = from; i < to; i++) price[i] = last[i] * Math.exp(drift + vol * z[i]);
+    }
+}
+
+/** Merton jump-diffusion: GBM plus Poisson jumps with lognormal size, drift compensated */
+class JumpDiffusionModel implements PriceModel {
+    final double mu, sigma, lambda, jumpMean, jumpStd;
+
+    /** @param lambda jumps per year; jumpMean / jumpStd describe the log jump size */
+    JumpDiffusionModel(double mu, double sigma, double lambda, double jumpMean, double jumpStd) {
+        this.mu = mu; this.sigma = sigma; this.lambda = lambda; this.jumpMean = jumpMean; this.jumpStd = jumpStd;
+    }
+
+    @Override
+    public void advance(QuoteStore q, int from, int to, long seed, long tick, double dt) {
+        double k = Math.exp(jumpMean + 0.5 * jumpStd * jumpStd) - 1;
+        double drift = (mu - lambda * k - 0.5 * sigma * sigma) * dt, vol = sigma * Math.sqrt(dt);
+        double jumpProb = lambda * dt;
+        double[] last = q.lastPrice, price = q.price, z = q.shock;
+        for (int i = from; i < to; i++) {
+            double x = drift + vol * z[i];
+            long key = TickRandom.key(seed, i, tick);
+            if (TickRandom.uniform(key, 1) < jumpProb) x += jumpMean + jumpStd * TickRandom.gaussian(key, 2);
+            price[i] = last[i] * Math.exp(x);
+        }
+    }
+}
+
+/** Ornstein-Uhlenbeck on log price, pulled back towards the listing price */
+class MeanReversionModel implements PriceModel {
+    final double theta, sigma;
+
+    /** @param theta reversion speed per year; sigma annual volatility of log price */
+    MeanReversionModel(double theta, double sigma) { this.theta = theta; this.sigma = sigma; }
+
+    @Override
+    public void advance(QuoteStore q, int from, int to, long seed, long tick, double dt) {
+        // exact discretisation: x' = m + (x - m) e^(-theta dt) + sd * z
+        double decay = Math.exp(-theta * dt);
+        double sd = sigma * Math.sqrt((1 - decay * decay) / (2 * theta));
+        double[] last = q.lastPrice, price = q.price, logBase = q.logBase, logPrice = q.logPrice, z = q.shock;
+        long[] seq = q.seq, logSeq = q.logSeq;
+        for (int i = from; i < to; i++) {
+            double m = logBase[i];
+            // carry the unrounded state between ticks; re-derive it only if something else moved the quote
+            double x = (logSeq[i] == seq[i]) ? logPrice[i] : Math.log(last[i]);
+            double next = m + (x - m) * decay + sd * z[i];
+            logPrice[i] = next;
+            logSeq[i] = seq[i] + 1; // the engine bumps seq once it publishes this tick
+            price[i] = Math.exp(next);
+        }
+    }
+}
+
+/**
+ Correlated shocks from one factor per sector. The K sector factors are drawn
+ independently and mixed through the Cholesky factor of a K x K correlation
+ matrix once per tick; each symbol then takes its sector's factor scaled by the
+ sector loading plus an idiosyncratic part. Per tick this costs O(K^2 + N)
+ rather than a dense N x N multiply, and two symbols i, j end up with shock
+ correlation beta_i * beta_j * corr(sector_i, sector_j).
+*/
+class FactorModel {
+    private static final long FACTOR_SALT = 0x5DEECE66DL;
+    private final int k;
+    private final double[][] chol;
+    final double[] loading, idio;
+    private final double[] draws;
+
+    /** @param loading per-sector weight of the sector factor in [0, 1] */
+    FactorModel(double[][] correlation, double[] loading) {
+        k = correlation.length;
+        if (loading.length != k) throw new IllegalArgumentException("need one loading per factor");
+        chol = cholesky(correlation);
+        this.loading = loading.clone();
+        idio = new double[k];
+        for (int i = 0; i < k; i++) {
+            if (loading[i] < 0 || loading[i] > 1) throw new IllegalArgumentException("loading must be in [0, 1]");
+            idio[i] = Math.sqrt(1 - loading[i] * loading[i]);
+        }
+        draws = new double[k];
+    }
+
+    /** Every pair of sectors correlated by {@code crossCorrelation} (a common market factor) */
+    static FactorModel market(int sectors, double crossCorrelation, double loading) {
+        double[][] c = new double[sectors][sectors];
+        for (int i = 0; i < sectors; i++) {
+            Arrays.fill(c[i], crossCorrelation);
+            c[i][i] = 1.0;
+        }
+        double[] l = new double[sectors];
+        Arrays.fill(l, loading);
+        return new FactorModel(c, l);
+    }
+
+    int factors() { return k; }
+
+    /** Correlated N(0,1) factor values for this tick, written to {@code out} */
+    void drawFactors(long seed, long tick, double[] out) {
+        for (int i = 0; i < k; i++) draws[i] = TickRandom.gaussian(TickRandom.key(seed ^ FACTOR_SALT, i, tick), 0);
+        for (int i = 0; i < k; i++) {
+            double[] row = chol[i];
+            double f = 0;
+            for (int j = 0; j <= i; j++) f += row[j] * draws[j];
+            out[i] = f;
+        }
+    }
+
+    private static double[][] cholesky(double[][] a) {
+        int n = a.length;
+        double[][] l = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            if (a[i].length != n) throw new IllegalArgumentException("correlation matrix must be square");
+            for (int j = 0; j <= i; j++) {
+                if (a[i][j] != a[j][i]) throw new IllegalArgumentException("correlation matrix must be symmetric");
+                double sum = a[i][j];
+                for (int m = 0; m < j; m++) sum -= l[i][m] * l[j][m];
+                if (i == j) {
+                    if (sum <= 0) throw new IllegalArgumentException("correlation matrix is not positive definite");
+                    l[i][i] = Math.sqrt(sum);
+                } else {
+                    l[i][j] = sum / l[j][j];
+                }
+            }
+        }
+        return l;
+    }
+}
+
+/* ----------------------- Tick Scheduler ----------------------- */
+/** How the tick thread waits for its next deadline: trades CPU for wake-up jitter */
+enum WaitStrategy {
+    SLEEP {
+        void waitUntil(long deadline) throws InterruptedException {
+            long rem;
+            while ((rem = deadline - System.nanoTime()) > 0) {
+                Thread.sleep(rem / 1_000_000, (int) (rem % 1_000_000));
+            }
+        }
+    },
+    PARK {
+        void waitUntil(long deadline) throws InterruptedException {
+            long rem;
+            while ((rem = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(rem);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+    },
+    SPIN {
+        void waitUntil(long deadline) throws InterruptedException {
+            while (deadline - System.nanoTime() > 0) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                Thread.onSpinWait();
+            }
+        }
+    };
+
+    abstract void waitUntil(long deadlineNanos) throws InterruptedException;
+}
+
+/**
+ Runs a task on a fixed grid of deadlines (start + k * period) so timing error
+ never accumulates. A run that ends past the next deadline counts as an overrun,
+ and the grid slots it swallowed are skipped rather than replayed back to back.
+*/
+class TickScheduler {
+    private final Runnable task;
+    private volatile long periodNanos;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.SLEEP;
+    private volatile boolean periodChanged;
+    private volatile Thread thread;
+
+    // written only by the tick thread
+    private volatile long ticks, overruns, skipped;
+
+    TickScheduler(Runnable task, long period, TimeUnit unit) {
+        this.task = task;
+        this.periodNanos = unit.toNanos(period);
+    }
+
+    public void setPeriod(long period, TimeUnit unit) {
+        long p = unit.toNanos(period);
+        if (p <= 0) throw new IllegalArgumentException("tick period must be positive");
+        periodNanos = p;
+        periodChanged = true;
+    }
+
+    public long getPeriodNanos() { return periodNanos; }
+    public void setWaitStrategy(WaitStrategy w) { waitStrategy = Objects.requireNonNull(w); }
+    public WaitStrategy getWaitStrategy() { return waitStrategy; }
+
+    public long getTicks() { return ticks; }
+    public long getOverruns() { return overruns; }
+    public long getSkipped() { return skipped; }
+
+    public synchronized boolean isRunning() { return thread != null; }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::loop, "market-tick");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    private void loop() {
+        Thread self = Thread.currentThread();
+        long next = System.nanoTime();
+        try {
+            while (thread == self) {
+                waitStrategy.waitUntil(next);
+                task.run();
+                ticks++;
+                long period = periodNanos;
+                if (periodChanged) {
+                    periodChanged = false;
+                    next = System.nanoTime(); // re-anchor the grid at the new rate
+                }
+                next += period;
+                long late = System.nanoTime() - next;
+                if (late > 0) {
+                    long missed = late / period + 1;
+                    overruns++;
+                    skipped += missed;
+                    next += missed * period;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
+
+/* ----------------------- Sim Clock ----------------------- */
+/**
+ Engine-wide simulated time as epoch nanoseconds. It follows the monotonic clock
+ at a configurable rate: 1 is real time; 2250 compresses a 6h15m trading session
+ into 10 seconds. Reading it allocates nothing; the anchor object is only
+ replaced when the rate or the time is changed.
+*/
+class SimClock {
+    private static final class Anchor {
+        final long sim, mono;
+        final double rate;
+        Anchor(long sim, long mono, double rate) { this.sim = sim; this.mono = mono; this.rate = rate; }
+    }
+
+    private volatile Anchor anchor;
+
+    SimClock() {
+        Instant now = Instant.now();
+        anchor = new Anchor(now.getEpochSecond() * 1_000_000_000L + now.getNano(), System.nanoTime(), 1.0);
+    }
+
+    /** Current simulated time in epoch nanos */
+    public long now() {
+        Anchor a = anchor;
+        long elapsed = System.nanoTime() - a.mono;
+        return a.sim + (a.rate == 1.0 ? elapsed : (long) (elapsed * a.rate));
+    }
+
+    public double getRate() { return anchor.rate; }
+
+    /** Simulated seconds per real second, from now on */
+    public synchronized void setRate(double rate) {
+        if (!(rate > 0)) throw new IllegalArgumentException("clock rate must be positive");
+        anchor = new Anchor(now(), System.nanoTime(), rate);
+    }
+
+    /** Jump to the given simulated time, keeping the rate */
+    public synchronized void set(long epochNanos) {
+        anchor = new Anchor(epochNanos, System.nanoTime(), anchor.rate);
+    }
+}
+
+/* ----------------------- Tick Log ----------------------- */
+/**
+ Binary tick recording. Header: magic, version, seed, start time, then every
+ symbol with its opening price in paise and tick size. Each tick record holds the
+ tick number, the SimClock delta in ns and every symbol's price change, all as
+ zigzag varints; price changes are quantized by the symbol's tick size the way
+ {@link TickCodec} does it, so a typical tick costs one to two bytes per symbol.
+ Version 2 logs (no tick sizes, raw paise deltas) still replay.
+*/
+class TickLog {
+    static final int MAGIC = 0x544C4F47; // "TLOG"
+    static final int VERSION = 3;
+
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long[] paise, quantum;
+        private long lastTime;
+
+        Writer(File f, long seed, String[] symbols, long[] prices, long[] tickPaise, long startNanos) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+            paise = new long[symbols.length];
+            quantum = Arrays.copyOf(tickPaise, symbols.length);
+            lastTime = startNanos;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seed);
+            out.writeLong(startNanos);
+            out.writeInt(symbols.length);
+            for (int i = 0; i < symbols.length; i++) {
+                paise[i] = prices[i];
+                out.writeUTF(symbols[i]);
+                out.writeLong(paise[i]);
+                out.writeLong(quantum[i]);
+            }
+        }
+
+        void append(long tick, long timeNanos, long[] prices) throws IOException {
+            writeVarLong(out, tick);
+            writeVarLong(out, zigzag(timeNanos - lastTime));
+            lastTime = timeNanos;
+            for (int i = 0; i < paise.length; i++) {
+                long p = prices[i];
+                writeVarLong(out, TickCodec.quantize(p - paise[i], quantum[i]));
+                paise[i] = p;
+            }
+        }
+
+        @Override
+        public void close() throws IOException { out.close(); }
+    }
+
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final int version;
+        private final long[] quantum;
+        final long seed;
+        final String[] symbols;
+        /** Prices in paise as of the last record read (the header before the first) */
+        final long[] paise;
+        long tick, timeNanos;
+
+        Reader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+            if (version != 2 && version != VERSION) {
+                in.close();
+                throw new IOException("not a tick log: " + f);
+            }
+            seed = in.readLong();
+            timeNanos = in.readLong();
+            int n = in.readInt();
+            symbols = new String[n];
+            paise = new long[n];
+            quantum = new long[n];
+            for (int i = 0; i < n; i++) {
+                symbols[i] = in.readUTF();
+                paise[i] = in.readLong();
+                quantum[i] = (version >= 3) ? in.readLong() : 1;
+            }
+        }
+
+        /** Advance to the next tick record; false at end of log */
+        boolean next() throws IOException {
+            try {
+                tick = readVarLong(in);
+            } catch (EOFException eof) {
+                return false;
+            }
+            timeNanos += unzigzag(readVarLong(in));
+            for (int i = 0; i < paise.length; i++) {
+                long v = readVarLong(in);
+                paise[i] += (version >= 3) ? TickCodec.dequantize(v, quantum[i]) : unzigzag(v);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+
+    static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+    static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+}
+
+/* ----------------------- Tick Codec ----------------------- */
+/**
+ Lossless compression for (epoch nanos, paise) series. The first point of a block is
+ stored whole; each later one is the zigzag varint delta-of-delta of its timestamp
+ and the zigzag varint delta of its price. A value that divides evenly by its
+ quantum (1 µs for time, the symbol's tick size for price) is stored divided,
+ flagged in the low bit, so a regularly spaced simulated tick costs 2-4 bytes.
+*/
+final class TickCodec {
+    /** Upper bound on one encoded point: two varints of up to 64 bits plus the flag bit */
+    static final int MAX_POINT = 20;
+    static final long TIME_QUANTUM = 1000;
+
+    private TickCodec() {}
+
+    static final class Encoder {
+        private final long priceQuantum;
+        private long time, delta, paise;
+        private boolean first = true;
+
+        Encoder(long priceQuantum) { this.priceQuantum = Math.max(1, priceQuantum); }
+
+        /** Start a new independently decodable block */
+        void reset() { first = true; }
+
+        /** Carry on a block another encoder wrote, from the point {@code d} decoded last */
+        void continueFrom(Decoder d) {
+            first = d.first;
+            time = d.time;
+            delta = d.delta;
+            paise = d.paise;
+        }
+
+        void encode(ByteBuffer out, long t, long p) {
+            if (first) {
+                putVarLong(out, TickLog.zigzag(t));
+                putVarLong(out, TickLog.zigzag(p));
+                delta = 0;
+                first = false;
+            } else {
+                long d = t - time;
+                putVarLong(out, quantize(d - delta, TIME_QUANTUM));
+                putVarLong(out, quantize(p - paise, priceQuantum));
+                delta = d;
+            }
+            time = t;
+            paise = p;
+        }
+    }
+
+    static final class Decoder {
+        private final long priceQuantum;
+        private long delta;
+        private boolean first = true;
+        long time, paise;
+
+        Decoder(long priceQuantum) { this.priceQuantum = Math.max(1, priceQuantum); }
+
+        void reset() { first = true; }
+
+        /** Decode the next point from {@code in}; false when it has nothing left */
+        boolean next(ByteBuffer in) {
+            if (!in.hasRemaining()) return false;
+            if (first) {
+                time = TickLog.unzigzag(getVarLong(in));
+                paise = TickLog.unzigzag(getVarLong(in));
+                delta = 0;
+                first = false;
+            } else {
+                delta += dequantize(getVarLong(in), TIME_QUANTUM);
+                time += delta;
+                paise += dequantize(getVarLong(in), priceQuantum);
+            }
+            return true;
+        }
+    }
+
+    /** A quantum of 1 needs no flag bit */
+    static long quantize(long v, long q) {
+        if (q <= 1) return TickLog.zigzag(v);
+        if (v % q == 0) return TickLog.zigzag(v / q) << 1;
+        return (TickLog.zigzag(v) << 1) | 1;
+    }
+
+    static long dequantize(long v, long q) {
+        if (q <= 1) return TickLog.unzigzag(v);
+        long d = TickLog.unzigzag(v >>> 1);
+        return ((v & 1) == 0) ? d * q : d;
+    }
+
+    static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+}
+
+/**
+ In-memory archive of ticks that have aged out of a {@link PriceHistory} ring,
+ compressed with {@link TickCodec} into fixed-size blocks. Full blocks are never
+ written again, so readers can decode {@link #views} without further locking;
+ the oldest blocks are dropped to stay within the byte budget.
+*/
+class CompressedSeries {
+    static final int BLOCK = 4096;
+    private final TickCodec.Encoder encoder;
+    private final long priceQuantum;
+    private final ArrayDeque<ByteBuffer> blocks = new ArrayDeque<>();
+    private long maxBytes;
+
+    CompressedSeries(long priceQuantum, long maxBytes) {
+        this.priceQuantum = priceQuantum;
+        this.maxBytes = maxBytes;
+        encoder = new TickCodec.Encoder(priceQuantum);
+    }
+
+    public void append(long timeNanos, long paise) {
+        ByteBuffer cur = blocks.peekLast();
+        if (cur == null || cur.remaining() < TickCodec.MAX_POINT) {
+            cur = ByteBuffer.allocate(BLOCK);
+            blocks.addLast(cur);
+            encoder.reset();
+            trim();
+        }
+        encoder.encode(cur, timeNanos, paise);
+    }
+
+    public void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+        trim();
+    }
+
+    /** Bytes of encoded data held, excluding unused tails of blocks */
+    public long encodedBytes() {
+        long n = 0;
+        for (ByteBuffer b : blocks) n += b.position();
+        return n;
+    }
+
+    /** Read-only views of every block's encoded bytes, oldest first; the bytes they cover are immutable */
+    public ByteBuffer[] views() {
+        ByteBuffer[] out = new ByteBuffer[blocks.size()];
+        int i = 0;
+        for (ByteBuffer b : blocks) out[i++] = b.asReadOnlyBuffer().flip();
+        return out;
+    }
+
+    public TickCodec.Decoder decoder() { return new TickCodec.Decoder(priceQuantum); }
+
+    private void trim() {
+        while (blocks.size() > 1 && (long) blocks.size() * BLOCK > maxBytes) blocks.removeFirst();
+    }
+}
+
+/* ----------------------- Tick Store ----------------------- */
+/** Receives stored ticks in time order */
+interface TickVisitor {
+    void tick(long timeNanos, long pricePaise);
+}
+
+/**
+ Off-heap full-depth tick history: each symbol appends its (epoch nanos, paise) ticks,
+ {@link TickCodec}-compressed, to memory-mapped segment files under
+ {@code dir/<SYMBOL>/}, named by the time of their first tick. A full segment rolls
+ over to a new one, and rollover also drops the symbol's oldest segments once they
+ fall outside the time or size budget. Appends for different symbols touch disjoint
+ state, so parallel shards may call {@link #append} concurrently as long as each
+ symbol has a single writer.
+*/
+class TickStore implements Closeable {
+    static final int MAGIC = 0x544B5332; // "TKS2"
+    static final int HEADER = 16;         // magic, bytes used, price quantum, reserved
+
+    private final File dir;
+    private final long segmentBytes, retainNanos, retainBytes;
+    private MappedByteBuffer[] active = new MappedByteBuffer[64];
+    private TickCodec.Encoder[] encoders = new TickCodec.Encoder[64];
+    private final List<ArrayDeque<File>> segments = new ArrayList<>(Collections.nCopies(64, null));
+
+    /** One-MiB segments, keeping 30 days or 256 MiB per symbol, whichever is smaller */
+    TickStore(File dir) {
+        this(dir, 1 << 20, TimeUnit.DAYS.toNanos(30), 256L << 20);
+    }
+
+    TickStore(File dir, long segmentBytes, long retainNanos, long retainBytes) {
+        if (segmentBytes < HEADER + TickCodec.MAX_POINT || segmentBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("bad segment size");
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retainNanos = retainNanos;
+        this.retainBytes = retainBytes;
+        dir.mkdirs();
+    }
+
+    /** Size the per-symbol tables for ids below {@code n}; call before appending in parallel */
+    public synchronized void ensureCapacity(int n) {
+        if (n <= active.length) return;
+        int cap = Math.max(n, active.length * 2);
+        active = Arrays.copyOf(active, cap);
+        encoders = Arrays.copyOf(encoders, cap);
+        segments.addAll(Collections.nCopies(cap - segments.size(), null));
+    }
+
+    /** Append one tick; {@code priceQuantum} is the symbol's tick size, used when a new segment starts */
+    public void append(int id, String symbol, long priceQuantum, long timeNanos, long paise) throws IOException {
+        MappedByteBuffer seg = active[id];
+        if (seg == null || seg.remaining() < TickCodec.MAX_POINT) seg = roll(id, symbol, priceQuantum, timeNanos);
+        encoders[id].encode(seg, timeNanos, paise);
+        VarHandle.releaseFence(); // the point is visible before the length that covers it
+        seg.putInt(4, seg.position());
+    }
+
+    /** Visit the ticks of {@code symbol} with times in [fromNanos, toNanos), decoding the mapped files in place */
+    public void scan(String symbol, long fromNanos, long toNanos, TickVisitor v) throws IOException {
+        File[] files = new File(dir, symbol).listFiles((d, name) -> name.endsWith(".seg"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (int f = 0; f < files.length; f++) {
+            if (f + 1 < files.length && segmentStart(files[f + 1]) <= fromNanos) continue;
+            if (segmentStart(files[f]) >= toNanos) break;
+            ByteBuffer seg;
+            try (FileChannel ch = FileChannel.open(files[f].toPath(), StandardOpenOption.READ)) {
+                seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            } catch (NoSuchFileException gone) {
+                continue; // dropped by retention while we were listing
+            }
+            if (seg.getInt(0) != MAGIC) throw new IOException("not a tick segment: " + files[f]);
+            int used = seg.getInt(4);
+            VarHandle.acquireFence();
+            TickCodec.Decoder d = new TickCodec.Decoder(seg.getInt(8));
+            seg.limit(used).position(HEADER);
+            while (d.next(seg)) {
+                if (d.time < fromNanos) continue;
+                if (d.time >= toNanos) return;
+                v.tick(d.time, d.paise);
+            }
+        }
+    }
+
+    /** Reopen the symbol's newest segment if it has room, otherwise start a new one and apply retention */
+    private MappedByteBuffer roll(int id, String symbol, long priceQuantum, long timeNanos) throws IOException {
+        ArrayDeque<File> segs = segments.get(id);
+        if (segs == null) {
+            File sdir = new File(dir, symbol);
+            sdir.mkdirs();
+            File[] files = sdir.listFiles((d, name) -> name.endsWith(".seg"));
+            Arrays.sort(files);
+            segs = new ArrayDeque<>(Arrays.asList(files));
+            segments.set(id, segs);
+            if (!segs.isEmpty()) {
+                MappedByteBuffer last = map(segs.peekLast());
+                if (last.getInt(0) == MAGIC && last.getInt(4) + TickCodec.MAX_POINT <= segmentBytes) {
+                    // replay the segment once to pick up the encoder state where it stopped
+                    TickCodec.Decoder d = new TickCodec.Decoder(last.getInt(8));
+                    ByteBuffer in = last.duplicate().limit(last.getInt(4)).position(HEADER);
+                    while (d.next(in)) { }
+                    encoders[id] = new TickCodec.Encoder(last.getInt(8));
+                    encoders[id].continueFrom(d);
+                    last.position(in.position());
+                    return active[id] = last;
+                }
+            }
+        }
+        File f = new File(new File(dir, symbol), String.format("%019d.seg", timeNanos));
+        MappedByteBuffer seg = map(f);
+        seg.putInt(0, MAGIC);
+        seg.putInt(4, HEADER);
+        seg.putInt(8, (int) priceQuantum);
+        seg.position(HEADER);
+        encoders[id] = new TickCodec.Encoder(priceQuantum);
+        segs.addLast(f);
+        active[id] = seg;
+        retain(segs, timeNanos);
+        return seg;
+    }
+
+    private void retain(ArrayDeque<File> segs, long nowNanos) {
+        while (segs.size() > 1) {
+            Iterator<File> it = segs.iterator();
+            File oldest = it.next();
+            // a segment ends where the next one begins
+            boolean expired = segmentStart(it.next()) < nowNanos - retainNanos;
+            boolean over = (long) segs.size() * segmentBytes > retainBytes;
+            if (!expired && !over) return;
+            segs.removeFirst();
+            if (!oldest.delete()) oldest.deleteOnExit();
+        }
+    }
+
+    private MappedByteBuffer map(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private static long segmentStart(File f) {
+        String n = f.getName();
+        return Long.parseLong(n.substring(0, n.length() - 4));
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < active.length; i++) {
+            if (active[i] != null) active[i].force();
+            active[i] = null;
+        }
+        Collections.fill(segments, null);
+    }
+}
+
+/* ----------------------- Tick Bus ----------------------- */
+/** Receives the (symbolId, price, prevPrice, seq) deltas published after each tick */
+interface TickListener {
+    /** Called on the subscription's own thread; the batch is reused once this returns */
+    void onTicks(TickBatch batch);
+
+    /** The consumer fell more than a ring's worth behind; {@code lost} deltas were dropped */
+    default void onOverrun(long lost) {}
+}
+
+/** A consumer-private copy of a run of deltas, reused between deliveries */
+final class TickBatch {
+    private int size;
+    private int[] symbol = new int[256];
+    private double[] price = new double[256], prevPrice = new double[256];
+    private long[] seq = new long[256];
+
+    public int size() { return size; }
+    public int symbolId(int i) { return symbol[i]; }
+    public double price(int i) { return price[i]; }
+    public double prevPrice(int i) { return prevPrice[i]; }
+    public long seq(int i) { return seq[i]; }
+
+    void fill(TickBus bus, long from, int n) {
+        if (n > symbol.length) {
+            int cap = Integer.highestOneBit(n - 1) << 1;
+            symbol = new int[cap]; price = new double[cap]; prevPrice = new double[cap]; seq = new long[cap];
+        }
+        for (int i = 0; i < n; i++) {
+            int slot = bus.slot(from + i);
+            symbol[i] = bus.symbol[slot];
+            price[i] = bus.price[slot];
+            prevPrice[i] = bus.prevPrice[slot];
+            seq[i] = bus.seq[slot];
+        }
+        size = n;
+    }
+}
+
+/**
+ Single-producer broadcast ring of price deltas. The tick thread fills slots and
+ publishes a whole tick with one volatile cursor store; it never waits for anyone.
+ Every subscription polls on its own thread with its own sequence, copies what it
+ has not seen yet, then re-reads the cursor: if the producer may have lapped the
+ copy, the deltas are reported lost rather than delivered torn.
+*/
+class TickBus {
+    private final int capacity, mask, maxBatch;
+    final int[] symbol;
+    final double[] price, prevPrice;
+    final long[] seq;
+    private volatile long cursor; // deltas [0, cursor) are published
+    private final List<Subscription> subs = new CopyOnWriteArrayList<>();
+
+    /** @param maxBatch most deltas a single publish can produce (the universe size) */
+    TickBus(int maxBatch) {
+        this.maxBatch = maxBatch;
+        capacity = Integer.highestOneBit(Math.max(1 << 16, maxBatch * 8) - 1) << 1;
+        mask = capacity - 1;
+        symbol = new int[capacity];
+        price = new double[capacity];
+        prevPrice = new double[capacity];
+        seq = new long[capacity];
+    }
+
+    int slot(long sequence) { return (int) (sequence & mask); }
+    public int capacity() { return capacity; }
+    public long cursor() { return cursor; }
+    public boolean hasSubscribers() { return !subs.isEmpty(); }
+
+    /** Tick thread only: publish every symbol whose price moved on this tick */
+    void publish(QuoteStore q) {
+        double[] p = q.price, last = q.lastPrice;
+        long[] s = q.seq;
+        long c = cursor;
+        for (int i = 0, n = q.size(); i < n; i++) {
+            if (p[i] == last[i]) continue;
+            int slot = (int) (c++ & mask);
+            symbol[slot] = i;
+            price[slot] = p[i];
+            prevPrice[slot] = last[i];
+            seq[slot] = s[i];
+        }
+        cursor = c;
+    }
+
+    public Subscription subscribe(TickListener l, WaitStrategy wait, long pollNanos) {
+        Subscription sub = new Subscription(l, wait, pollNanos);
+        subs.add(sub);
+        sub.thread.start();
+        return sub;
+    }
+
+    final class Subscription implements AutoCloseable {
+        private final TickListener listener;
+        private final WaitStrategy wait;
+        private final long pollNanos;
+        private final Thread thread;
+        private volatile long sequence = cursor; // next delta this consumer has not seen
+        private volatile boolean closed;
+
+        private Subscription(TickListener listener, WaitStrategy wait, long pollNanos) {
+            this.listener = listener;
+            this.wait = wait;
+            this.pollNanos = pollNanos;
+            thread = new Thread(this::run, "tick-subscriber");
+            thread.setDaemon(true);
+        }
+
+        public long getSequence() { return sequence; }
+        public long getLag() { return cursor - sequence; }
+
+        @Override
+        public void close() {
+            closed = true;
+            subs.remove(this);
+            thread.interrupt();
+        }
+
+        private void run() {
+            TickBatch batch = new TickBatch();
+            try {
+                while (!closed) {
+                    long from = sequence, avail = cursor;
+                    if (avail == from) {
+                        wait.waitUntil(System.nanoTime() + pollNanos);
+                        continue;
+                    }
+                    // a publish in flight may already be rewriting up to maxBatch slots past the cursor
+                    if (avail - from <= capacity - maxBatch) {
+                        batch.fill(TickBus.this, from, (int) (avail - from));
+                        VarHandle.acquireFence();
+                        if (cursor - from <= capacity - maxBatch) {
+                            sequence = avail;
+                            try { listener.onTicks(batch); } catch (Exception e) { e.printStackTrace(); }
+                            continue;
+                        }
+                    }
+                    sequence = avail;
+                    try { listener.onOverrun(avail - from); } catch (Exception e) { e.printStackTrace(); }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
+
+/* ----------------------- Universe Loader ----------------------- */
+/**
+ Reads a symbol universe file, one symbol per line as
+ {@code name,symbol,price,sector[,tickSize]} (tick size defaults to 0.01; lines
+ starting with '#' and lines whose price does not parse, such as a header, are
+ skipped; fields cannot contain commas). The file is memory-mapped and scanned
+ in place: prices are parsed straight from the bytes and sector names are matched
+ against the ones already seen, so the only allocations per line are the name
+ and symbol Strings the Stock keeps.
+*/
+class UniverseLoader {
+    interface Sink {
+        void accept(String name, String symbol, long pricePaise, String sector, long tickPaise);
+    }
+
+    private final MappedByteBuffer buf;
+    private final List<byte[]> sectorBytes = new ArrayList<>();
+    private final List<String> sectorNames = new ArrayList<>();
+    private byte[] scratch = new byte[64];
+
+    private UniverseLoader(MappedByteBuffer buf) { this.buf = buf; }
+
+    /** @return number of symbols handed to the sink */
+    static int load(File f, Sink sink) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("universe file too large: " + f);
+            return new UniverseLoader(ch.map(FileChannel.MapMode.READ_ONLY, 0, size)).parse((int) size, sink);
+        }
+    }
+
+    private int parse(int end, Sink sink) {
+        int[] cut = new int[7]; // start of each field; the entry after the last field is its end + 1 (fields past the fifth are ignored)
+        int pos = 0, count = 0;
+        while (pos < end) {
+            int eol = pos;
+            while (eol < end && buf.get(eol) != '\n') eol++;
+            int lineEnd = (eol > pos && buf.get(eol - 1) == '\r') ? eol - 1 : eol;
+            if (lineEnd > pos && buf.get(pos) != '#') {
+                int fields = 0;
+                cut[0] = pos;
+                for (int i = pos; i < lineEnd && fields < 5; i++) {
+                    if (buf.get(i) == ',') cut[++fields] = i + 1;
+                }
+                cut[++fields] = lineEnd + 1;
+                if (fields >= 4) {
+                    long price = parsePaise(cut[2], cut[3] - 1);
+                    long tick = (fields >= 5) ? parsePaise(cut[4], cut[5] - 1) : 1;
+                    if (price > 0 && tick > 0) {
+                        sink.accept(text(cut[0], cut[1] - 1), text(cut[1], cut[2] - 1), price, sector(cut[3], cut[4] - 1), tick);
+                        count++;
+                    }
+                }
+            }
+            pos = eol + 1;
+        }
+        return count;
+    }
+
+    /** Decimal in [from, to) as paise, rounded half up; -1 if it is not a plain number */
+    private long parsePaise(int from, int to) {
+        while (from < to && buf.get(from) == ' ') from++;
+        while (to > from && buf.get(to - 1) == ' ') to--;
+        if (from == to) return -1;
+        long v = 0;
+        int frac = -1; // digits seen after the point
+        boolean roundUp = false;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b == '.' && frac < 0) { frac = 0; continue; }
+            if (b < '0' || b > '9') return -1;
+            if (frac < 2) {
+                v = v * 10 + (b - '0');
+                if (frac >= 0) frac++;
+            } else if (frac == 2) {
+                roundUp = b >= '5';
+                frac++;
+            }
+        }
+        for (int f = Math.max(frac, 0); f < 2; f++) v *= 10;
+        return roundUp ? v + 1 : v;
+    }
+
+    private String text(int from, int to) {
+        while (from < to && buf.get(from) == ' ') from++;
+        while (to > from && buf.get(to - 1) == ' ') to--;
+        int n = to - from;
+        if (n > scratch.length) scratch = new byte[Math.max(n, scratch.length * 2)];
+        buf.get(from, scratch, 0, n);
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private String sector(int from, int to) {
+        while (from < to && buf.get(from) == ' ') from++;
+        while (to > from && buf.get(to - 1) == ' ') to--;
+        outer:
+        for (int s = sectorBytes.size() - 1; s >= 0; s--) {
+            byte[] b = sectorBytes.get(s);
+            if (b.length != to - from) continue;
+            for (int i = 0; i < b.length; i++) if (buf.get(from + i) != b[i]) continue outer;
+            return sectorNames.get(s);
+        }
+        String name = text(from, to);
+        sectorBytes.add(name.getBytes(StandardCharsets.UTF_8));
+        sectorNames.add(name);
+        return name;
+    }
+}
+
+/* ----------------------- Market Engine ----------------------- */
+class MarketEngine {
+    private static final long VOLUME_SALT = 0x2545F4914F6CDD1DL;
+    private static final double[] VOLUME_NOISE = TickRandom.quantiles(z -> Math.exp(0.5 * z)); // lognormal, sigma 0.5
+    private final QuoteStore quotes = new QuoteStore();
+    private final SymbolDictionary symbols = new SymbolDictionary();
+    private Stock[] byId = new Stock[64];
+    private final TickScheduler scheduler = new TickScheduler(this::runTick, 3, TimeUnit.SECONDS);
+    private volatile Runnable onTick;
+    private final long seed;
+    private long tick;
+    private final SimClock clock = new SimClock();
+    private int historyCapacity = Stock.DEFAULT_HISTORY;
+    private long tickTime; // SimClock time stamped on the current tick
+
+    private TickBus bus;
+
+    // record / replay
+    private TickLog.Writer recorder;
+    private File replaySource;
+    private boolean replayPaced;
+    private Thread replayThread;
+    private long replaySeed;
+    private volatile TickStore tickStore; // optional full-depth off-heap history
+
+    // parallel tick mode: symbols are cut into fixed-size shards so the split never depends on core count
+    private ForkJoinPool pool;
+    private int shardSize = 4096;
+
+    // price models: resolved per symbol, ticked as runs of consecutive ids sharing a model
+    private final List<String> sectors = new ArrayList<>();
+    private PriceModel defaultModel = new UniformStepModel();
+    private PriceModel[] modelOf = new PriceModel[64]; // explicit per-symbol choice, or null
+    private final Map<Integer, PriceModel> sectorModels = new HashMap<>();
+    private int[] runStart = new int[0]; // run r covers ids [runStart[r], runStart[r + 1])
+    private PriceModel[] runModel = new PriceModel[0];
+    private boolean runsDirty = true;
+    private double timeStep = 1.0 / 252; // one simulated trading day per tick
+    private FactorModel factorModel;      // null: symbols draw independent shocks
+    private double[] factors = new double[0];
+
+    public MarketEngine() {
+        this(new Random().nextLong());
+    }
+
+    public MarketEngine(long seed) {
+        this(seed, new File(Utils.UNIVERSE_FILE));
+    }
+
+    /** Load the symbol universe from the given file, or the built-in list if it is missing or empty */
+    public MarketEngine(long seed, File universe) {
+        this.seed = seed;
+        long listedAt = clock.now();
+        if (universe.exists()) {
+            try {
+                UniverseLoader.load(universe, (name, symbol, price, sector, tick) -> addStock(name, symbol, price, sector, tick, listedAt));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (quotes.size() == 0) addDefaultStocks(listedAt);
+    }
+
+    private void addDefaultStocks(long t) {
+        // --- Preloaded Stock List (Indian + Global) ---
+        addStock("Reliance Industries", "RELI", 2850.00, "Energy", t);
+        addStock("TCS", "TCS", 3450.00, "Technology", t);
+        addStock("Infosys", "INFY", 1450.50, "Technology", t);
+        addStock("HCL Technologies", "HCLT", 1120.40, "Technology", t);
+        addStock("Wipro", "WIPRO", 490.20, "Technology", t);
+        addStock("Maruti Suzuki", "MARUTI", 10725.50, "Auto", t);
+        addStock("Tata Motors", "TATAMOT", 925.10, "Auto", t);
+        addStock("HDFC Bank", "HDFCBANK", 1590.45, "Financials", t);
+        addStock("ICICI Bank", "ICICIBANK", 1045.35, "Financials", t);
+        addStock("State Bank of India", "SBIN", 845.25, "Financials", t);
+        addStock("Bajaj Finance", "BAJFIN", 6980.75, "Financials", t);
+        addStock("Asian Paints", "ASIANPNT", 3200.10, "Consumer", t);
+        addStock("ITC Ltd", "ITC", 470.35, "Consumer", t);
+        addStock("Adani Enterprises", "ADANIENT", 2325.60, "Industrials", t);
+        addStock("Larsen & Toubro", "LT", 3580.90, "Industrials", t);
+        addStock("Bharti Airtel", "AIRTEL", 1030.25, "Telecom", t);
+        addStock("Sun Pharma", "SUNPHARMA", 1455.15, "Healthcare", t);
+        addStock("Titan Company", "TITAN", 3450.80, "Consumer", t);
+        addStock("Nestle India", "NESTLE", 25900.00, "Consumer", t);
+        addStock("Hindustan Unilever", "HUL", 2530.25, "Consumer", t);
+        addStock("PowerGrid Corp", "POWERGRID", 310.10, "Utilities", t);
+        addStock("ONGC", "ONGC", 265.45, "Energy", t);
+        addStock("Coal India", "COALIND", 410.60, "Energy", t);
+        addStock("Adani Green", "ADANIGRN", 1210.75, "Utilities", t);
+        addStock("JSW Steel", "JSWSTL", 930.25, "Materials", t);
+        addStock("NTPC", "NTPC", 310.40, "Utilities", t);
+        addStock("Apple Inc.", "AAPL", 150.00, "Technology", t);
+        addStock("Microsoft Corp", "MSFT", 340.00, "Technology", t);
+        addStock("Amazon", "AMZN", 130.00, "Consumer", t);
+        addStock("Tesla Motors", "TSLA", 220.00, "Auto", t);
+        addStock("Google (Alphabet)", "GOOG", 125.00, "Technology", t);
+        addStock("Meta Platforms", "META", 250.00, "Technology", t);
+        addStock("NVIDIA Corp", "NVDA", 900.00, "Technology", t);
+        addStock("Adobe Inc.", "ADBE", 510.00, "Technology", t);
+        addStock("Intel Corp", "INTC", 34.00, "Technology", t);
+        addStock("Oracle", "ORCL", 108.00, "Technology", t);
+        addStock("Coca-Cola", "KO", 58.00, "Consumer", t);
+        addStock("PepsiCo", "PEP", 175.00, "Consumer", t);
+        addStock("Toyota Motor", "TM", 190.00, "Auto", t);
+        addStock("Sony Group", "SONY", 88.00, "Technology", t);
+    }
+
+    private void addStock(String name, String symbol, double price, String sector, long listedAt) {
+        addStock(name, symbol, Money.ofRupees(price), sector, 1, listedAt);
+    }
+
+    private void addStock(String name, String symbol, long pricePaise, String sector, long tickPaise, long listedAt) {
+        if (symbols.lookup(symbol) >= 0) return;
+        if (symbols.intern(symbol) != quotes.size()) throw new IllegalStateException("symbols must be listed before unlisted ones are interned");
+        int id = quotes.add(pricePaise, sectorId(sector), tickPaise);
+        Stock s = new Stock(quotes, id, name, symbol, sector, listedAt, historyCapacity, this);
+        if (id == byId.length) {
+            byId = Arrays.copyOf(byId, id * 2);
+            modelOf = Arrays.copyOf(modelOf, id * 2);
+        }
+        byId[id] = s;
+        runsDirty = true;
+    }
+
+    private int sectorId(String sector) {
+        int i = sectors.indexOf(sector);
+        if (i >= 0) return i;
+        sectors.add(sector);
+        return sectors.size() - 1;
+    }
+
+    public List<String> getSectors() { return Collections.unmodifiableList(sectors); }
+
+    /** Listed stocks in id order */
+    public List<Stock> getStocks() {
+        return Collections.unmodifiableList(Arrays.asList(byId).subList(0, quotes.size()));
+    }
+
+    public SymbolDictionary symbols() { return symbols; }
+
+    public Stock getStock(String symbol) {
+        return getStock(symbols.lookup(symbol));
+    }
+
+    public Stock getStock(int id) {
+        return (id >= 0 && id < quotes.size()) ? byId[id] : null;
+    }
+
+    /**
+     Receive the price deltas of every tick on a dedicated consumer thread that
+     idles with the given wait strategy. A slow subscriber only loses deltas (see
+     {@link TickListener#onOverrun}); it never holds up the tick thread or others.
+    */
+    public synchronized TickBus.Subscription subscribe(TickListener l, WaitStrategy wait) {
+        if (bus == null) bus = new TickBus(quotes.size());
+        return bus.subscribe(l, wait, TimeUnit.MICROSECONDS.toNanos(100));
+    }
+
+    /** Start market price simulation and call the given Runnable after each tick */
+    public synchronized void start(Runnable onTick) {
+        if (scheduler.isRunning() || replayThread != null) return;
+        this.onTick = onTick;
+        if (replaySource != null) {
+            replayThread = new Thread(this::replayLoop, "market-replay");
+            replayThread.setDaemon(true);
+            replayThread.start();
+        } else {
+            scheduler.start();
+        }
+    }
+
+    public synchronized void stop() {
+        scheduler.stop();
+        if (replayThread != null) { replayThread.interrupt(); replayThread = null; }
+        if (pool != null) pool.shutdown();
+        stopRecording();
+        setTickStore(null);
+    }
+
+    /** Append every subsequent tick to {@code store} (null detaches and closes the current one) */
+    public synchronized void setTickStore(TickStore store) {
+        if (tickStore != null && tickStore != store) tickStore.close();
+        if (store != null) store.ensureCapacity(quotes.size());
+        tickStore = store;
+    }
+
+    public TickStore getTickStore() { return tickStore; }
+
+    /** Record every subsequent tick to a binary tick log (see {@link TickLog}) */
+    public synchronized void startRecording(File log) {
+        stopRecording();
+        String[] symbols = new String[quotes.size()];
+        for (int i = 0; i < symbols.length; i++) symbols[i] = byId[i].getSymbol();
+        try {
+            recorder = new TickLog.Writer(log, seed, symbols, quotes.paise, quotes.tickPaise, clock.now());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void stopRecording() {
+        if (recorder == null) return;
+        try { recorder.close(); } catch (IOException e) { e.printStackTrace(); }
+        recorder = null;
+    }
+
+    /**
+     Make {@link #start(Runnable)} feed ticks from a recorded log instead of simulating,
+     either at the recorded pace or as fast as the onTick pipeline accepts them.
+    */
+    public synchronized void replayFrom(File log, boolean originalPace) {
+        replaySource = log;
+        replayPaced = originalPace;
+    }
+
+    /** Change the tick interval; takes effect from the next tick, also while running */
+    public void setTickInterval(long interval, TimeUnit unit) { scheduler.setPeriod(interval, unit); }
+    public void setWaitStrategy(WaitStrategy w) { scheduler.setWaitStrategy(w); }
+    public long getTicksRun() { return scheduler.getTicks(); }
+    public long getTicksOverrun() { return scheduler.getOverruns(); }
+    public long getTicksSkipped() { return scheduler.getSkipped(); }
+
+    private void runTick() {
+        simulateTick();
+        fireTick();
+    }
+
+    private void fireTick() {
+        Runnable r = onTick;
+        if (r != null) {
+            try { r.run(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void replayLoop() {
+        try (TickLog.Reader r = new TickLog.Reader(replaySource)) {
+            int n = quotes.size();
+            if (r.symbols.length != n) throw new IOException("tick log has " + r.symbols.length + " symbols, universe has " + n);
+            for (int i = 0; i < n; i++) {
+                if (!r.symbols[i].equals(byId[i].getSymbol())) throw new IOException("tick log symbol " + i + " is " + r.symbols[i]);
+            }
+            replaySeed = r.seed;
+            long startMono = System.nanoTime(), startSim = r.timeNanos;
+            while (!Thread.currentThread().isInterrupted() && r.next()) {
+                // original pace means recorded sim time played back at the clock's current rate
+                if (replayPaced) scheduler.getWaitStrategy().waitUntil(startMono + (long) ((r.timeNanos - startSim) / clock.getRate()));
+                applyTick(r.tick, r.timeNanos, r.paise);
+                fireTick();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Install a recorded tick as if it had just been simulated */
+    synchronized void applyTick(long t, long timeNanos, long[] paise) {
+        tick = t;
+        clock.set(timeNanos);
+        tickTime = timeNanos;
+        double[] price = quotes.price, lastPrice = quotes.lastPrice;
+        long[] seq = quotes.seq, quote = quotes.paise;
+        System.arraycopy(quote, 0, quotes.lastPaise, 0, paise.length);
+        for (int i = 0; i < paise.length; i++) {
+            lastPrice[i] = price[i];
+            quote[i] = paise[i];
+            price[i] = Money.toRupees(paise[i]);
+            seq[i]++;
+        }
+        // volume is not recorded; it is a pure function of the recording's seed and tick
+        fillVolumes(0, paise.length, replaySeed, t);
+        for (int i = 0; i < paise.length; i++) byId[i].recordTick(tickTime);
+        storeTicks(0, paise.length);
+        publishTick();
+    }
+
+    /** Hand the finished tick to subscribers and the recorder */
+    private void publishTick() {
+        if (bus != null && bus.hasSubscribers()) bus.publish(quotes);
+        if (recorder == null) return;
+        try {
+            recorder.append(tick, tickTime, quotes.paise);
+        } catch (IOException e) {
+            e.printStackTrace();
+            stopRecording();
+        }
+    }
+
+    public long getSeed() { return seed; }
+
+    /** History depth for every listed symbol; single symbols can be tuned via Stock.setHistoryCapacity */
+    public synchronized void setHistoryCapacity(int points) {
+        historyCapacity = points;
+        for (Stock s : getStocks()) s.setHistoryCapacity(points);
+    }
+    /** Compressed archive budget per symbol for ticks older than the history ring; 0 (the default) keeps none */
+    public synchronized void setHistoryArchive(long bytesPerSymbol) {
+        for (Stock s : getStocks()) s.setHistoryArchive(bytesPerSymbol);
+    }
+    public SimClock clock() { return clock; }
+
+    /**
+     Tick shards in parallel on a dedicated ForkJoin pool with the given number of
+     threads; 1 or less goes back to ticking on the scheduler thread. Prices for a
+     given seed are identical in either mode.
+    */
+    public synchronized void setParallelism(int threads) {
+        if (pool != null) pool.shutdown();
+        pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+    }
+
+    public synchronized void setShardSize(int symbols) {
+        if (symbols < 1) throw new IllegalArgumentException("shard size must be positive");
+        shardSize = symbols;
+    }
+
+    /** Model used by symbols with neither a symbol nor a sector assignment */
+    public synchronized void setDefaultModel(PriceModel m) {
+        defaultModel = Objects.requireNonNull(m);
+        runsDirty = true;
+    }
+
+    public synchronized void setSectorModel(String sector, PriceModel m) {
+        int sid = sectors.indexOf(sector);
+        if (sid < 0) throw new IllegalArgumentException("unknown sector: " + sector);
+        if (m == null) sectorModels.remove(sid); else sectorModels.put(sid, m);
+        runsDirty = true;
+    }
+
+    /** Pin a model to one symbol, overriding its sector's; null clears the pin */
+    public synchronized void setModel(String symbol, PriceModel m) {
+        Stock s = getStock(symbol);
+        if (s == null) throw new IllegalArgumentException("unknown symbol: " + symbol);
+        modelOf[s.getId()] = m;
+        runsDirty = true;
+    }
+
+    /** Length of one tick in trading years as seen by the price models */
+    public synchronized void setTimeStep(double years) {
+        if (!(years > 0)) throw new IllegalArgumentException("time step must be positive");
+        timeStep = years;
+    }
+
+    /**
+     Correlate the shocks fed to the price models through a sector factor model with
+     one factor per sector, in {@link #getSectors()} order; null makes them independent.
+    */
+    public synchronized void setFactorModel(FactorModel fm) {
+        if (fm != null && fm.factors() != sectors.size()) {
+            throw new IllegalArgumentException("factor model has " + fm.factors() + " factors, engine has " + sectors.size() + " sectors");
+        }
+        factorModel = fm;
+        factors = new double[sectors.size()];
+    }
+
+    /** Model currently resolved for a listed symbol */
+    synchronized PriceModel modelFor(int id) {
+        return resolveModel(id);
+    }
+
+    private PriceModel resolveModel(int id) {
+        PriceModel m = modelOf[id];
+        if (m == null) m = sectorModels.get(quotes.sector[id]);
+        return (m == null) ? defaultModel : m;
+    }
+
+    private void rebuildRuns() {
+        int n = quotes.size();
+        int[] starts = new int[n + 1];
+        PriceModel[] models = new PriceModel[n];
+        int r = 0;
+        for (int i = 0; i < n; i++) {
+            PriceModel m = resolveModel(i);
+            if (r == 0 || models[r - 1] != m) { starts[r] = i; models[r++] = m; }
+        }
+        starts[r] = n;
+        runStart = Arrays.copyOf(starts, r + 1);
+        runModel = Arrays.copyOf(models, r);
+        runsDirty = false;
+    }
+
+    /**
+     Advance every symbol by one tick. Each run of symbols sharing a {@link PriceModel}
+     is handed to that model (unless configured, {@link UniformStepModel}), then prices
+     are snapped to tick size, volumes drawn and the tick published;
+     large universes are split into shards across the pool.
+    */
+    synchronized void simulateTick() {
+        if (runsDirty) rebuildRuns();
+        long t = ++tick;
+        if (factorModel != null) factorModel.drawFactors(seed, t, factors);
+        tickTime = clock.now() / TickCodec.TIME_QUANTUM * TickCodec.TIME_QUANTUM; // µs stamps compress to a byte
+        int n = quotes.size();
+        if (pool == null || n <= shardSize) {
+            tickRange(0, n, t);
+        } else {
+            pool.invoke(new ShardTask(0, (n + shardSize - 1) / shardSize, n, t));
+        }
+        publishTick();
+    }
+
+    private void tickRange(int from, int to, long t) {
+        double[] price = quotes.price;
+        long[] seq = quotes.seq, paise = quotes.paise;
+        System.arraycopy(price, from, quotes.lastPrice, from, to - from);
+        System.arraycopy(paise, from, quotes.lastPaise, from, to - from);
+        int r = Arrays.binarySearch(runStart, from);
+        if (r < 0) r = -r - 2;
+        for (; r < runModel.length && runStart[r] < to; r++) {
+            int a = Math.max(from, runStart[r]), b = Math.min(to, runStart[r + 1]);
+            PriceModel m = runModel[r];
+            if (m.usesShocks()) fillShocks(a, b, t);
+            m.advance(quotes, a, b, seed, t, timeStep);
+        }
+        for (int i = from; i < to; i++) {
+            paise[i] = quotes.roundPaise(i, price[i]);
+            price[i] = Money.toRupees(paise[i]);
+            seq[i]++;
+        }
+        fillVolumes(from, to, seed, t);
+        for (int i = from; i < to; i++) byId[i].recordTick(tickTime);
+        storeTicks(from, to);
+    }
+
+    private void storeTicks(int from, int to) {
+        TickStore ts = tickStore;
+        if (ts == null) return;
+        long[] paise = quotes.paise;
+        try {
+            for (int i = from; i < to; i++) ts.append(i, byId[i].getSymbol(), quotes.tickPaise[i], tickTime, paise[i]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tickStore = null; // stop storing rather than fail on every tick
+        }
+    }
+
+    /** Synthetic traded volume: lognormal noise scaled up by the size of the move */
+    private void fillVolumes(int from, int to, long s, long t) {
+        double[] price = quotes.price, lastPrice = quotes.lastPrice;
+        long[] volume = quotes.volume;
+        for (int i = from; i < to; i++) {
+            double noise = TickRandom.draw(TickRandom.key(s ^ VOLUME_SALT, i, t), 0, VOLUME_NOISE);
+            volume[i] = Math.round(100 * noise * (1 + 100 * Math.abs(price[i] / lastPrice[i] - 1)));
+        }
+    }
+
+    private void fillShocks(int from, int to, long t) {
+        double[] shock = quotes.shock;
+        FactorModel fm = factorModel;
+        if (fm == null) {
+            for (int i = from; i < to; i++) shock[i] = TickRandom.gaussian(TickRandom.key(seed, i, t), 0);
+            return;
+        }
+        int[] sector = quotes.sector;
+        double[] f = factors, beta = fm.loading, idio = fm.idio;
+        for (int i = from; i < to; i++) {
+            int k = sector[i];
+            shock[i] = beta[k] * f[k] + idio[k] * TickRandom.gaussian(TickRandom.key(seed, i, t), 0);
+        }
+    }
+
+    /** Splits a range of shards in halves until each task owns a single shard */
+    @SuppressWarnings("serial") // a fork/join task, never serialized
+    private final class ShardTask extends RecursiveAction {
+        private final int lo, hi, n;
+        private final long t;
+
+        ShardTask(int lo, int hi, int n, long t) { this.lo = lo; this.hi = hi; this.n = n; this.t = t; }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                tickRange(lo * shardSize, Math.min(n, (lo + 1) * shardSize), t);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ShardTask(lo, mid, n, t), new ShardTask(mid, hi, n, t));
+        }
+    }
+}
+
+/* ----------------------- History Generator ----------------------- */
+/**
+ Batch generator for years of synthetic intraday OHLCV bars, driven by the
+ engine's per-symbol price models. Symbols are split into small groups ticked
+ in bulk on a worker pool; each group keeps a few weeks of bars in memory and
+ writes them straight to their place in the file, so heap stays bounded
+ however long the history.
+
+ File layout (all big-endian): magic, version, seed, symbol count, bars per day,
+ bar minutes, ticks per bar, trading day count, the trading days as epoch days,
+ the symbols, then at {@link OhlcHistory#dataStart} one block per symbol of five
+ int columns (open, high, low, close in paise, then volume), each bar-count long.
+ Bar b of a day starts at the 09:15 session open plus b bar lengths.
+*/
+class HistoryGenerator {
+    static final int MAGIC = 0x4F484C43; // "OHLC"
+    static final int VERSION = 1;
+    static final LocalTime SESSION_OPEN = LocalTime.of(9, 15);
+    static final int SESSION_MINUTES = 375; // 09:15 - 15:30
+    static final int COLUMNS = 5;
+
+    private static final int SYMBOLS_PER_TASK = 32;
+    private static final int DAYS_PER_CHUNK = 16;
+    private static final long VOLUME_SALT = 0x2545F4914F6CDD1DL;
+
+    private final MarketEngine engine;
+    // the engine's default step ignores the time step, so it is swapped for this over minute bars
+    private PriceModel stepModelStandIn = new GbmModel(0.08, 0.25);
+
+    HistoryGenerator(MarketEngine engine) { this.engine = engine; }
+
+    public void setStepModelStandIn(PriceModel m) { stepModelStandIn = Objects.requireNonNull(m); }
+
+    /** @return bars written per symbol */
+    public long generate(File out, LocalDate from, int years, int barMinutes, int ticksPerBar, int threads) throws IOException, InterruptedException {
+        if (barMinutes < 1 || SESSION_MINUTES % barMinutes != 0) throw new IllegalArgumentException("bar length must divide the " + SESSION_MINUTES + " minute session");
+        int barsPerDay = SESSION_MINUTES / barMinutes;
+        List<Integer> tradingDays = new ArrayList<>();
+        for (LocalDate d = from, end = from.plusYears(years); d.isBefore(end); d = d.plusDays(1)) {
+            if (d.getDayOfWeek() != DayOfWeek.SATURDAY && d.getDayOfWeek() != DayOfWeek.SUNDAY) tradingDays.add((int) d.toEpochDay());
+        }
+        List<Stock> stocks = engine.getStocks();
+        int n = stocks.size(), days = tradingDays.size();
+        long bars = (long) days * barsPerDay;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(MAGIC);
+        h.writeInt(VERSION);
+        h.writeLong(engine.getSeed());
+        h.writeInt(n);
+        h.writeInt(barsPerDay);
+        h.writeInt(barMinutes);
+        h.writeInt(ticksPerBar);
+        h.writeInt(days);
+        for (int d : tradingDays) h.writeInt(d);
+        for (Stock st : stocks) h.writeUTF(st.getSymbol());
+        h.flush();
+        long dataStart = (header.size() + 7) & ~7L;
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (FileChannel ch = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(header.toByteArray()), 0);
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int first = 0; first < n; first += SYMBOLS_PER_TASK) {
+                int lo = first, count = Math.min(SYMBOLS_PER_TASK, n - first);
+                tasks.add(workers.submit(() -> { generateGroup(ch, dataStart, bars, lo, count, days, barsPerDay, ticksPerBar); return null; }));
+            }
+            for (Future<?> f : tasks) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return bars;
+    }
+
+    private void generateGroup(FileChannel ch, long dataStart, long bars, int first, int count, int days, int barsPerDay, int ticksPerBar) throws IOException {
+        QuoteStore q = new QuoteStore();
+        PriceModel[] models = new PriceModel[count];
+        for (int k = 0; k < count; k++) {
+            Stock st = engine.getStock(first + k);
+            q.add(st.getPricePaise(), 0, 1); // paths start at today's price...
+            q.basePrice[k] = st.getBasePrice(); // ...but revert towards the listing price, as live ticks do
+            q.logBase[k] = Math.log(q.basePrice[k]);
+            PriceModel m = engine.modelFor(first + k);
+            models[k] = (m instanceof UniformStepModel) ? stepModelStandIn : m;
+        }
+        long seed = TickRandom.mix(engine.getSeed() + first);
+        double dt = 1.0 / (252.0 * barsPerDay * ticksPerBar);
+        int chunkBars = DAYS_PER_CHUNK * barsPerDay;
+        int[][] cols = new int[COLUMNS][count * chunkBars];
+        double[] open = new double[count], high = new double[count], low = new double[count];
+        ByteBuffer io = ByteBuffer.allocateDirect(chunkBars * 4);
+        long step = 0;
+
+        for (int day0 = 0; day0 < days; day0 += DAYS_PER_CHUNK) {
+            int nb = Math.min(DAYS_PER_CHUNK, days - day0) * barsPerDay;
+            for (int b = 0; b < nb; b++) {
+                System.arraycopy(q.price, 0, open, 0, count);
+                System.arraycopy(q.price, 0, high, 0, count);
+                System.arraycopy(q.price, 0, low, 0, count);
+                for (int t = 0; t < ticksPerBar; t++) {
+                    step(q, models, seed, ++step, dt);
+                    for (int k = 0; k < count; k++) {
+                        double p = q.price[k];
+                        if (p > high[k]) high[k] = p;
+                        if (p < low[k]) low[k] = p;
+                    }
+                }
+                long barIndex = (long) day0 * barsPerDay + b;
+                for (int k = 0; k < count; k++) {
+                    int at = k * chunkBars + b;
+                    double close = q.price[k];
+                    cols[0][at] = paise(open[k]);
+                    cols[1][at] = paise(high[k]);
+                    cols[2][at] = paise(low[k]);
+                    cols[3][at] = paise(close);
+                    double noise = Math.exp(0.5 * TickRandom.gaussian(TickRandom.key(seed ^ VOLUME_SALT, k, barIndex), 0));
+                    cols[4][at] = (int) Math.min(Integer.MAX_VALUE, Math.round(1000 * noise * (1 + 100 * Math.abs(Math.log(close / open[k])))));
+                }
+            }
+            for (int k = 0; k < count; k++) {
+                long block = dataStart + (first + k) * bars * COLUMNS * 4L;
+                for (int c = 0; c < COLUMNS; c++) {
+                    io.clear();
+                    io.asIntBuffer().put(cols[c], k * chunkBars, nb);
+                    io.limit(nb * 4);
+                    long pos = block + c * bars * 4L + (long) day0 * barsPerDay * 4L;
+                    while (io.hasRemaining()) pos += ch.write(io, pos);
+                }
+            }
+        }
+    }
+
+    private static void step(QuoteStore q, PriceModel[] models, long seed, long tick, double dt) {
+        int n = models.length;
+        System.arraycopy(q.price, 0, q.lastPrice, 0, n);
+        for (int a = 0; a < n; ) {
+            PriceModel m = models[a];
+            int b = a + 1;
+            while (b < n && models[b] == m) b++;
+            if (m.usesShocks()) {
+                for (int i = a; i < b; i++) q.shock[i] = TickRandom.gaussian(TickRandom.key(seed, i, tick), 0);
+            }
+            m.advance(q, a, b, seed, tick, dt);
+            a = b;
+        }
+        for (int i = 0; i < n; i++) {
+            q.price[i] = q.round(i, q.price[i]);
+            q.seq[i]++; // as QuoteStore.set would, so log-space models can reuse the log price they left
+        }
+    }
+
+    private static int paise(double price) {
+        return (int) Math.min(Integer.MAX_VALUE, Money.ofRupees(price));
+    }
+}
+
+/** Read-only view of a file written by {@link HistoryGenerator}; each symbol's block is mapped on demand */
+class OhlcHistory implements Closeable {
+    private final FileChannel ch;
+    final long seed, dataStart, bars;
+    final int barsPerDay, barMinutes, ticksPerBar;
+    final int[] tradingDays;
+    final String[] symbols;
+
+    OhlcHistory(File f) throws IOException {
+        ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(0))));
+            if (in.readInt() != HistoryGenerator.MAGIC || in.readInt() != HistoryGenerator.VERSION) throw new IOException("not an OHLC history file: " + f);
+            seed = in.readLong();
+            int n = in.readInt();
+            barsPerDay = in.readInt();
+            barMinutes = in.readInt();
+            ticksPerBar = in.readInt();
+            tradingDays = new int[in.readInt()];
+            long headerBytes = 36 + 4L * tradingDays.length;
+            for (int i = 0; i < tradingDays.length; i++) tradingDays[i] = in.readInt();
+            symbols = new String[n];
+            for (int i = 0; i < n; i++) {
+                symbols[i] = in.readUTF();
+                headerBytes += 2 + symbols[i].getBytes(StandardCharsets.UTF_8).length;
+            }
+            dataStart = (headerBytes + 7) & ~7L;
+            bars = (long) tradingDays.length * barsPerDay;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Start of bar {@code bar} in local time */
+    public LocalDateTime barTime(long bar) {
+        return LocalDate.ofEpochDay(tradingDays[(int) (bar / barsPerDay)]).atTime(HistoryGenerator.SESSION_OPEN).plusMinutes((bar % barsPerDay) * barMinutes);
+    }
+
+    /** Column {@code c} (0 open, 1 high, 2 low, 3 close in paise, 4 volume) of one symbol, mapped */
+    public IntBuffer column(int symbol, int c) throws IOException {
+        long pos = dataStart + (symbol * HistoryGenerator.COLUMNS + c) * bars * 4L;
+        return ch.map(FileChannel.MapMode.READ_ONLY, pos, bars * 4L).asIntBuffer();
+    }
+
+    @Override
+    public void close() throws IOException { ch.close(); }
+}
+
+/* ----------------------- Account Store ----------------------- */
+/**
+ Memory-mapped user accounts: the file is an open-addressing hash table (linear
+ probing on String.hashCode, like {@link SymbolDictionary}) whose slots are the
+ fixed-width account records themselves, so lookup, signup and a balance update
+ each touch one or two records in place. The table doubles into a fresh file
+ when half full. A signup is forced as it happens, since nothing else records it;
+ balances come only from journal compaction, which forces them before the journal
+ that covers them is dropped.
+*/
+class AccountStore implements Closeable {
+    static final int MAGIC = 0x41434354; // "ACCT"
+    static final int VERSION = 1;
+    static final int HEADER = 16;        // magic, version, size, capacity
+    static final int RECORD = 128;
+    static final int MAX_NAME = 32, MAX_PASSWORD = 64;
+    // record layout: used flag, name length, name bytes, password length, password bytes, balance in paise
+    private static final int USED = 0, NAME_LEN = 1, NAME = 2, PASS_LEN = NAME + MAX_NAME, PASS = PASS_LEN + 1, BALANCE = 104;
+
+    private final File file;
+    private MappedByteBuffer map;
+    private int size, capacity;
+
+    AccountStore(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            map = map(file, file.length());
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("not an account store: " + file);
+            size = map.getInt(8);
+            capacity = map.getInt(12);
+        } else {
+            capacity = 1024;
+            map = create(file, capacity);
+        }
+    }
+
+    /**
+     Open the store, importing users.csv the first time so existing accounts carry over.
+     The import is built beside the store and renamed into place only once complete, so a
+     failure part way leaves no store and the next start imports again. Rows that cannot
+     become accounts (too long, duplicate, malformed) are reported and skipped.
+    */
+    static AccountStore openOrMigrate(File file, File usersCsv) throws IOException {
+        if (!file.exists() && usersCsv.exists()) {
+            File staging = new File(file.getPath() + ".import");
+            Files.deleteIfExists(staging.toPath());
+            AccountStore store = new AccountStore(staging);
+            int line = 0;
+            for (String[] r : Utils.readCSV(usersCsv.getPath())) {
+                line++;
+                if (r.length == 1 && r[0].isEmpty()) continue;
+                if (r.length < 3) {
+                    System.err.println(usersCsv + ":" + line + ": skipped, expected username,password,balance");
+                    continue;
+                }
+                long bal = 0;
+                try { bal = Money.parse(r[2]); } catch (Exception ignored) {}
+                try {
+                    if (!store.create(r[0], r[1], bal)) System.err.println(usersCsv + ":" + line + ": skipped duplicate user " + r[0]);
+                } catch (IllegalArgumentException e) {
+                    System.err.println(usersCsv + ":" + line + ": skipped user " + r[0] + ": " + e.getMessage());
+                }
+            }
+            store.close();
+            Files.move(staging.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (!usersCsv.renameTo(new File(usersCsv.getPath() + ".migrated"))) System.err.println("could not retire " + usersCsv);
+        }
+        return new AccountStore(file);
+    }
+
+    public synchronized int size() { return size; }
+
+    public synchronized boolean exists(String username) { return find(username) >= 0; }
+
+    /**
+     False if the name is taken; names and passwords must fit their fixed-width fields.
+     Signups are not journaled, so the new record and the header are forced before returning.
+    */
+    public synchronized boolean create(String username, String password, long balance) throws IOException {
+        byte[] name = bytes(username, MAX_NAME, "username"), pass = bytes(password, MAX_PASSWORD, "password");
+        if (find(username) >= 0) return false;
+        if ((size + 1) * 2 > capacity) grow();
+        int at = recordAt(freeSlot(username));
+        map.put(at + NAME_LEN, (byte) name.length);
+        map.put(at + NAME, name);
+        map.put(at + PASS_LEN, (byte) pass.length);
+        map.put(at + PASS, pass);
+        map.putLong(at + BALANCE, balance);
+        map.put(at + USED, (byte) 1);
+        map.putInt(8, ++size);
+        map.force(at, RECORD);
+        map.force(0, HEADER);
+        return true;
+    }
+
+    /** Null unless the account exists and the password matches */
+    public synchronized Long authenticate(String username, String password) {
+        int slot = find(username);
+        if (slot < 0) return null;
+        int at = recordAt(slot);
+        return password.equals(string(at + PASS_LEN, at + PASS)) ? map.getLong(at + BALANCE) : null;
+    }
+
+    public synchronized long balance(String username) {
+        int slot = find(username);
+        if (slot < 0) throw new IllegalArgumentException("no such user: " + username);
+        return map.getLong(recordAt(slot) + BALANCE);
+    }
+
+    /** Overwrite one account's balance field in place */
+    public synchronized void setBalance(String username, long paise) {
+        int slot = find(username);
+        if (slot < 0) throw new IllegalArgumentException("no such user: " + username);
+        map.putLong(recordAt(slot) + BALANCE, paise);
+    }
+
+    public synchronized void flush() { map.force(); }
+
+    private int find(String username) {
+        int mask = capacity - 1;
+        for (int i = username.hashCode() & mask; ; i = (i + 1) & mask) {
+            int at = recordAt(i);
+            if (map.get(at + USED) == 0) return -1;
+            if (username.equals(string(at + NAME_LEN, at + NAME))) return i;
+        }
+    }
+
+    private int freeSlot(String username) {
+        int mask = capacity - 1;
+        int i = username.hashCode() & mask;
+        while (map.get(recordAt(i) + USED) != 0) i = (i + 1) & mask;
+        return i;
+    }
+
+    private String string(int lenAt, int at) {
+        byte[] b = new byte[map.get(lenAt) & 0xFF];
+        map.get(at, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static int recordAt(int slot) { return HEADER + slot * RECORD; }
+
+    private static byte[] bytes(String s, int max, String what) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > max) throw new IllegalArgumentException(what + " longer than " + max + " bytes");
+        return b;
+    }
+
+    /** Rehash into a table twice the size, written beside the store and swapped in by rename */
+    private void grow() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        int cap = capacity * 2, mask = cap - 1;
+        MappedByteBuffer next = create(tmp, cap);
+        for (int slot = 0; slot < capacity; slot++) {
+            int from = recordAt(slot);
+            if (map.get(from + USED) == 0) continue;
+            int i = string(from + NAME_LEN, from + NAME).hashCode() & mask;
+            while (next.get(recordAt(i) + USED) != 0) i = (i + 1) & mask;
+            next.put(recordAt(i), map, from, RECORD);
+        }
+        next.putInt(8, size);
+        next.force();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map = next;
+        capacity = cap;
+    }
+
+    private static MappedByteBuffer create(File f, int capacity) throws IOException {
+        MappedByteBuffer m = map(f, HEADER + (long) capacity * RECORD);
+        m.putInt(0, MAGIC);
+        m.putInt(4, VERSION);
+        m.putInt(8, 0);
+        m.putInt(12, capacity);
+        return m;
+    }
+
+    private static MappedByteBuffer map(File f, long bytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    @Override
+    public synchronized void close() { map.force(); }
+}
+
+/* ----------------------- Key-Value Store ----------------------- */
+/**
+ Small log-structured key/value store. Writes land in a sorted memtable; a full
+ memtable or {@link #flush} writes it out as an immutable sorted segment with a
+ sparse key index and a bloom filter, both kept in memory. A background thread
+ merges runs of similar-sized segments so lookups consult only a handful, and at
+ most {@code MAX_OPEN} segment files are held open. MANIFEST lists the live
+ segments oldest first and is replaced atomically, so a crash mid-flush or
+ mid-merge leaves only stray files that the next open deletes. There is no log of
+ its own: callers write ahead elsewhere (the trade journal) and flush before
+ dropping it.
+*/
+class KvStore implements Closeable {
+    static final int MAGIC = 0x4B565331;   // "KVS1"
+    static final int FOOTER = 16;          // data end, record count, magic
+    static final int MEMTABLE_BYTES = 4 << 20;
+    static final int INDEX_EVERY = 32;     // records per sparse index entry
+    static final int BLOOM_BITS_PER_KEY = 10, BLOOM_HASHES = 7;
+    static final int COMPACT_AT = 6;       // live segments before the compactor wakes
+    static final int MAX_OPEN = 32;
+
+    private final File dir;
+    private TreeMap<String, String> memtable = new TreeMap<>(); // a null value is a tombstone
+    private long memBytes;
+    private final List<Segment> segments = new ArrayList<>(); // oldest first
+    private long nextSeq;
+    private boolean closed;
+    private final LinkedHashMap<Segment, FileChannel> open = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Segment, FileChannel> e) {
+            if (size() <= MAX_OPEN) return false;
+            closeQuietly(e.getValue());
+            return true;
+        }
+    };
+    private final Thread compactor;
+
+    private static final class Segment {
+        final File file;
+        final String[] indexKeys;
+        final long[] indexOffsets;
+        final long dataEnd, bytes;
+        final long[] bloom;
+        final int count;
+
+        Segment(File file, String[] indexKeys, long[] indexOffsets, long dataEnd, long[] bloom, int count) {
+            this.file = file;
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.dataEnd = dataEnd;
+            this.bloom = bloom;
+            this.count = count;
+            this.bytes = file.length();
+        }
+
+        /** Range of the index block that would hold key, or null if it sorts before the first key */
+        long[] block(String key) {
+            int at = blockAt(key);
+            if (at < 0) return null;
+            return new long[]{indexOffsets[at], blockEnd(at)};
+        }
+
+        /** Index of the last block whose first key is not after key, or -1 */
+        int blockAt(String key) {
+            int lo = 0, hi = indexKeys.length - 1, at = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexKeys[mid].compareTo(key) <= 0) { at = mid; lo = mid + 1; }
+                else hi = mid - 1;
+            }
+            return at;
+        }
+
+        long blockEnd(int at) { return (at + 1 < indexOffsets.length) ? indexOffsets[at + 1] : dataEnd; }
+    }
+
+    /** Streams sorted records into a new segment file, building its index and bloom filter */
+    private static final class SegmentWriter implements Closeable {
+        private final File file;
+        private final FileOutputStream fos;
+        private final DataOutputStream out;
+        private final long[] bloom;
+        private final List<String> indexKeys = new ArrayList<>();
+        private final List<Long> indexOffsets = new ArrayList<>();
+        private long pos;
+        private int count;
+        private boolean done;
+
+        SegmentWriter(File file, int expected) throws IOException {
+            this.file = file;
+            fos = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            bloom = new long[(int) Math.max(1, ((long) expected * BLOOM_BITS_PER_KEY + 63) >>> 6)];
+        }
+
+        void add(String key, String value) throws IOException {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            if (count++ % INDEX_EVERY == 0) {
+                indexKeys.add(key);
+                indexOffsets.add(pos);
+            }
+            out.writeShort(k.length);
+            out.write(k);
+            pos += 2 + k.length + 4;
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] v = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(v.length);
+                out.write(v);
+                pos += v.length;
+            }
+            bloomAdd(bloom, hash64(k));
+        }
+
+        /** Null, and no file, if nothing was added */
+        Segment finish() throws IOException {
+            done = true;
+            if (count == 0) {
+                out.close();
+                Files.deleteIfExists(file.toPath());
+                return null;
+            }
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] k = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(k.length);
+                out.write(k);
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeInt(bloom.length);
+            for (long w : bloom) out.writeLong(w);
+            out.writeLong(pos);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            long[] offs = new long[indexOffsets.size()];
+            for (int i = 0; i < offs.length; i++) offs[i] = indexOffsets.get(i);
+            return new Segment(file, indexKeys.toArray(new String[0]), offs, pos, bloom, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            out.close();
+            Files.deleteIfExists(file.toPath()); // abandoned half-written segment
+        }
+    }
+
+    /** One input of a merge, positioned on its current record */
+    private static final class Cursor {
+        final int age; // position in the segment list: higher is newer
+        final DataInputStream in;
+        String key, value;
+
+        Cursor(int age, DataInputStream in) {
+            this.age = age;
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            String[] r = readRecord(in);
+            if (r == null) return false;
+            key = r[0];
+            value = r[1];
+            return true;
+        }
+    }
+
+    KvStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        Set<String> live = new HashSet<>();
+        File manifest = new File(dir, "MANIFEST");
+        if (manifest.exists()) {
+            for (String name : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (name.isEmpty()) continue;
+                segments.add(load(new File(dir, name)));
+                live.add(name);
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String n = f.getName();
+                if (!n.endsWith(".sst")) continue;
+                try { nextSeq = Math.max(nextSeq, Long.parseLong(n.substring(0, n.length() - 4)) + 1); } catch (NumberFormatException ignored) {}
+                if (!live.contains(n)) Files.deleteIfExists(f.toPath()); // left by an interrupted flush or merge
+            }
+        }
+        compactor = new Thread(this::compactLoop, "kv-compact");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /** Null if the key is absent or deleted */
+    public synchronized String get(String key) throws IOException {
+        if (memtable.containsKey(key)) return memtable.get(key);
+        long h = hash64(key.getBytes(StandardCharsets.UTF_8));
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if (!bloomMightContain(s.bloom, h)) continue;
+            long[] b = s.block(key);
+            if (b == null) continue;
+            DataInputStream in = reader(channel(s), b[0], b[1]);
+            for (String[] r; (r = readRecord(in)) != null; ) {
+                int c = r[0].compareTo(key);
+                if (c == 0) return r[1];
+                if (c > 0) break;
+            }
+        }
+        return null;
+    }
+
+    /** Live entries whose keys start with prefix, in key order */
+    public synchronized SortedMap<String, String> scan(String prefix) throws IOException {
+        TreeMap<String, String> out = new TreeMap<>(memtable.subMap(prefix, prefix + Character.MAX_VALUE));
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            long[] b = s.block(prefix);
+            DataInputStream in = reader(channel(s), (b != null) ? b[0] : 0, s.dataEnd);
+            for (String[] r; (r = readRecord(in)) != null; ) {
+                if (r[0].startsWith(prefix)) {
+                    if (!out.containsKey(r[0])) out.put(r[0], r[1]); // newer layers already decided this key
+                } else if (r[0].compareTo(prefix) > 0) {
+                    break;
+                }
+            }
+        }
+        out.values().removeIf(Objects::isNull);
+        return out;
+    }
+
+    /**
+     Up to {@code limit} live entries whose keys start with prefix and sort before
+     {@code before} (null for no bound), newest key first. Each layer is read backwards
+     from the bound one index block at a time, so a page costs the same however many
+     keys sort ahead of it; pass the last key returned as the next {@code before}.
+    */
+    public synchronized List<Map.Entry<String, String>> scanDescending(String prefix, String before, int limit) throws IOException {
+        List<Map.Entry<String, String>> out = new ArrayList<>();
+        String end = (before != null) ? before : prefix + Character.MAX_VALUE;
+        while (out.size() < limit) {
+            int n = limit - out.size();
+            // each layer's n greatest keys, tombstones included, newest layer first so it decides shared keys
+            TreeMap<String, String> top = new TreeMap<>(Comparator.reverseOrder());
+            for (Map.Entry<String, String> e : memtable.subMap(prefix, true, end, false).descendingMap().entrySet()) {
+                if (top.size() == n) break;
+                top.put(e.getKey(), e.getValue());
+            }
+            for (int i = segments.size() - 1; i >= 0; i--) collectDescending(segments.get(i), prefix, end, n, top);
+            int taken = 0;
+            for (Map.Entry<String, String> e : top.entrySet()) {
+                if (taken++ == n) break;
+                end = e.getKey();
+                if (e.getValue() != null) out.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+            }
+            if (top.size() < n) break; // every layer ran out
+        }
+        return out;
+    }
+
+    /** Add segment s's {@code n} greatest keys in [prefix, end) to {@code into}, leaving keys a newer layer already set */
+    private void collectDescending(Segment s, String prefix, String end, int n, TreeMap<String, String> into) throws IOException {
+        int got = 0;
+        List<String[]> block = new ArrayList<>(INDEX_EVERY);
+        for (int b = s.blockAt(end); b >= 0 && got < n; b--) {
+            block.clear();
+            DataInputStream in = reader(channel(s), s.indexOffsets[b], s.blockEnd(b));
+            for (String[] r; (r = readRecord(in)) != null; ) {
+                if (r[0].startsWith(prefix) && r[0].compareTo(end) < 0) block.add(r);
+            }
+            for (int i = block.size() - 1; i >= 0 && got < n; i--, got++) {
+                if (!into.containsKey(block.get(i)[0])) into.put(block.get(i)[0], block.get(i)[1]);
+            }
+            if (s.indexKeys[b].compareTo(prefix) < 0) break; // everything earlier sorts before the prefix
+        }
+    }
+
+    public synchronized void put(String key, String value) throws IOException { write(key, Objects.requireNonNull(value)); }
+
+    public synchronized void delete(String key) throws IOException { write(key, null); }
+
+    private void write(String key, String value) throws IOException {
+        if (closed) throw new IOException("store closed");
+        if (key.length() > 0x3fff) throw new IllegalArgumentException("key too long");
+        memtable.put(key, value);
+        memBytes += 64 + 2L * key.length() + ((value != null) ? 2L * value.length() : 0);
+        if (memBytes >= MEMTABLE_BYTES) flush();
+    }
+
+    /** Write the memtable out as a durable segment */
+    public synchronized void flush() throws IOException {
+        if (memtable.isEmpty()) return;
+        Segment s;
+        try (SegmentWriter w = new SegmentWriter(new File(dir, segmentName(nextSeq++)), memtable.size())) {
+            boolean bottom = segments.isEmpty(); // nothing older for a tombstone to hide
+            for (Map.Entry<String, String> e : memtable.entrySet()) if (e.getValue() != null || !bottom) w.add(e.getKey(), e.getValue());
+            s = w.finish();
+        }
+        if (s != null) {
+            segments.add(s);
+            writeManifest();
+        }
+        memtable = new TreeMap<>();
+        memBytes = 0;
+        if (segments.size() >= COMPACT_AT) notifyAll();
+    }
+
+    public synchronized int segmentCount() { return segments.size(); }
 
-    public static void ensureDataDir() {
-        File d = new File(DATA_DIR);
-        if (!d.exists()) d.mkdirs();
+    public synchronized int openFiles() { return open.size(); }
+
+    private void compactLoop() {
+        while (true) {
+            List<Segment> inputs;
+            boolean bottom;
+            File out;
+            synchronized (this) {
+                try {
+                    while (!closed && segments.size() < COMPACT_AT) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                // newest segments first; take older ones while they are no bigger than twice what is already taken
+                int from = segments.size() - 1;
+                long taken = segments.get(from).bytes;
+                while (from > 0 && (segments.size() - from < 2 || segments.get(from - 1).bytes <= 2 * taken)) taken += segments.get(--from).bytes;
+                inputs = new ArrayList<>(segments.subList(from, segments.size()));
+                bottom = from == 0;
+                out = new File(dir, segmentName(nextSeq++));
+            }
+            try {
+                Segment merged = merge(inputs, out, bottom); // inputs are immutable; flushes carry on meanwhile
+                synchronized (this) {
+                    int at = segments.indexOf(inputs.get(0)); // only this thread removes, so the run is still contiguous
+                    segments.subList(at, at + inputs.size()).clear();
+                    if (merged != null) segments.add(at, merged);
+                    writeManifest();
+                    for (Segment s : inputs) {
+                        FileChannel ch = open.remove(s);
+                        if (ch != null) closeQuietly(ch);
+                        Files.deleteIfExists(s.file.toPath());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+            }
+        }
     }
 
-    public static List<String[]> readCSV(String path) {
-        List<String[]> out = new ArrayList<>();
-        File f = new File(path);
-        if (!f.exists()) return out;
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                out.add(line.split(",", -1));
+    private static Segment merge(List<Segment> inputs, File out, boolean bottom) throws IOException {
+        List<FileChannel> channels = new ArrayList<>();
+        try (SegmentWriter w = new SegmentWriter(out, inputs.stream().mapToInt(s -> s.count).sum())) {
+            PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> {
+                int c = a.key.compareTo(b.key);
+                return (c != 0) ? c : Integer.compare(b.age, a.age);
+            });
+            for (int i = 0; i < inputs.size(); i++) {
+                Segment s = inputs.get(i);
+                FileChannel ch = FileChannel.open(s.file.toPath(), StandardOpenOption.READ);
+                channels.add(ch);
+                Cursor c = new Cursor(i, reader(ch, 0, s.dataEnd));
+                if (c.advance()) heap.add(c);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            String last = null;
+            while (!heap.isEmpty()) {
+                Cursor c = heap.poll();
+                if (!c.key.equals(last)) { // the newest version of a key comes out first
+                    last = c.key;
+                    if (c.value != null || !bottom) w.add(c.key, c.value);
+                }
+                if (c.advance()) heap.add(c);
+            }
+            return w.finish();
+        } finally {
+            for (FileChannel ch : channels) closeQuietly(ch);
         }
-        return out;
     }
 
-    public static void appendLine(String path, String line) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(path, true))) {
-            pw.println(line);
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void writeManifest() throws IOException {
+        File tmp = new File(dir, "MANIFEST.tmp");
+        StringBuilder sb = new StringBuilder();
+        for (Segment s : segments) sb.append(s.file.getName()).append('\n');
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
         }
+        Files.move(tmp.toPath(), new File(dir, "MANIFEST").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    public static void writeAll(String path, List<String> lines) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(path, false))) {
-            for (String l : lines) pw.println(l);
-        } catch (Exception e) {
-            e.printStackTrace();
+    private FileChannel channel(Segment s) throws IOException {
+        FileChannel ch = open.get(s);
+        if (ch == null) {
+            ch = FileChannel.open(s.file.toPath(), StandardOpenOption.READ);
+            open.put(s, ch);
         }
+        return ch;
     }
 
-    // users
-    public static Map<String, String[]> readUsersMap() {
-        ensureDataDir();
-        Map<String, String[]> map = new LinkedHashMap<>();
-        File f = new File(USERS_FILE);
-        if (!f.exists()) return map;
-        List<String[]> rows = readCSV(USERS_FILE);
-        for (String[] r : rows) {
-            if (r.length >= 3) map.put(r[0], new String[]{r[1], r[2]});
+    private static Segment load(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer foot = read(ch, size - FOOTER, FOOTER);
+            long dataEnd = foot.getLong();
+            int count = foot.getInt();
+            if (foot.getInt() != MAGIC) throw new IOException("not a segment: " + f);
+            ByteBuffer meta = read(ch, dataEnd, (int) (size - FOOTER - dataEnd));
+            String[] keys = new String[meta.getInt()];
+            long[] offs = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                byte[] k = new byte[meta.getShort() & 0xffff];
+                meta.get(k);
+                keys[i] = new String(k, StandardCharsets.UTF_8);
+                offs[i] = meta.getLong();
+            }
+            long[] bloom = new long[meta.getInt()];
+            for (int i = 0; i < bloom.length; i++) bloom[i] = meta.getLong();
+            return new Segment(f, keys, offs, dataEnd, bloom, count);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel ch, long at, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) if (ch.read(b, at + b.position()) < 0) throw new EOFException();
+        return b.flip();
+    }
+
+    /** Buffered reader over [from, to) using positional reads, so readers never move a shared channel */
+    private static DataInputStream reader(FileChannel ch, long from, long to) {
+        return new DataInputStream(new BufferedInputStream(new InputStream() {
+            long pos = from;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos >= to) return -1;
+                int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, to - pos)), pos);
+                if (n > 0) pos += n;
+                return n;
+            }
+        }, (int) Math.max(1, Math.min(to - from, 2048)))); // about two index blocks; scans rarely need more
+    }
+
+    /** {key, value-or-null}, or null at the end of the data */
+    private static String[] readRecord(DataInputStream in) throws IOException {
+        int hi = in.read();
+        if (hi < 0) return null;
+        byte[] k = new byte[(hi << 8) | in.readUnsignedByte()];
+        in.readFully(k);
+        int len = in.readInt();
+        String v = null;
+        if (len >= 0) {
+            byte[] b = new byte[len];
+            in.readFully(b);
+            v = new String(b, StandardCharsets.UTF_8);
         }
-        return map;
+        return new String[]{new String(k, StandardCharsets.UTF_8), v};
     }
 
-    public static void writeUsersMap(Map<String, String[]> map) {
-        ensureDataDir();
-        List<String> lines = new ArrayList<>();
-        for (Map.Entry<String, String[]> e : map.entrySet()) {
-            lines.add(e.getKey() + "," + e.getValue()[0] + "," + e.getValue()[1]);
+    // FNV-1a; the two halves drive double hashing for the bloom probes
+    static long hash64(byte[] b) {
+        long h = 0xcbf29ce484222325L;
+        for (byte x : b) {
+            h ^= x & 0xff;
+            h *= 0x100000001b3L;
         }
-        writeAll(USERS_FILE, lines);
+        return h;
     }
 
-    // portfolio: data/portfolio_<username>.csv -> symbol,qty,avgPrice
-    public static void savePortfolio(String username, Collection<PortfolioItem> items) {
-        ensureDataDir();
-        String path = DATA_DIR + File.separator + "portfolio_" + username + ".csv";
-        List<String> lines = new ArrayList<>();
-        for (PortfolioItem it : items) {
-            lines.add(it.getSymbol() + "," + it.getQuantity() + "," + String.format("%.2f", it.getAvgPrice()));
+    static void bloomAdd(long[] bits, long h) {
+        long n = (long) bits.length << 6;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod((int) h + (long) i * (int) (h >>> 32), n);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
         }
-        writeAll(path, lines);
     }
 
-    public static List<String[]> loadPortfolio(String username) {
-        ensureDataDir();
-        String path = DATA_DIR + File.separator + "portfolio_" + username + ".csv";
-        return readCSV(path);
+    static boolean bloomMightContain(long[] bits, long h) {
+        long n = (long) bits.length << 6;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod((int) h + (long) i * (int) (h >>> 32), n);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
     }
 
-    // transactions: data/tx_<username>.csv -> type,symbol,qty,price,timestamp
-    public static void appendTransaction(String username, Transaction tx) {
-        ensureDataDir();
-        String path = DATA_DIR + File.separator + "tx_" + username + ".csv";
-        appendLine(path, tx.getType() + "," + tx.getSymbol() + "," + tx.getQuantity() + "," + String.format("%.2f", tx.getPrice()) + "," + tx.getTimestamp());
+    private static String segmentName(long seq) { return String.format("%019d.sst", seq); }
+
+    private static void closeQuietly(Closeable c) {
+        try { c.close(); } catch (IOException ignored) {}
     }
 
-    public static List<String[]> loadTransactions(String username) {
-        ensureDataDir();
-        String path = DATA_DIR + File.separator + "tx_" + username + ".csv";
-        return readCSV(path);
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            flush();
+            closed = true;
+            notifyAll();
+            for (FileChannel ch : open.values()) closeQuietly(ch);
+            open.clear();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
-/* ----------------------- Models ----------------------- */
-class Stock {
-    private final String name;
-    private final String symbol;
-    private double price;
-    private double lastPrice;
-    private final List<PricePoint> history = new ArrayList<>();
+/* ----------------------- Journal ----------------------- */
+/**
+ Write-ahead journal for the ledger. Each trade appends one checksummed line with
+ its LSN, the trade itself and the user's resulting balance and position, so a
+ trade costs one append however many users or holdings exist; appends are
+ group-committed through a {@link GroupCommitLog}. The account store and the
+ positions and {@link TxLog} history in {@link Utils#kv} are snapshots: {@link #compact}
+ folds journaled entries into them, records the covered LSN in snapshot.meta and
+ truncates the journal.
+ Opening a journal runs the same compaction, which is the crash recovery: every
+ entry is absolute and history rows are keyed by their LSN, so replaying
+ after a crash mid-compaction writes nothing twice.
+*/
+class Journal implements Closeable {
+    static final int COMPACT_EVERY = 1000;
 
-    public Stock(String name, String symbol, double price) {
-        this.name = name;
-        this.symbol = symbol;
-        this.price = price;
-        this.lastPrice = price;
-        addHistory(price);
+    static final class Entry {
+        final long lsn;
+        final String user, type, symbol;
+        final int qty, posQty;
+        final long price, timeNanos, balance, posAvg;
+
+        Entry(long lsn, String user, String type, String symbol, int qty, long price, long timeNanos, long balance, int posQty, long posAvg) {
+            this.lsn = lsn;
+            this.user = user;
+            this.type = type;
+            this.symbol = symbol;
+            this.qty = qty;
+            this.price = price;
+            this.timeNanos = timeNanos;
+            this.balance = balance;
+            this.posQty = posQty;
+            this.posAvg = posAvg;
+        }
+
+        String toLine() {
+            return lsn + "," + user + "," + type + "," + symbol + "," + qty + "," + price + "," + timeNanos + "," + balance + "," + posQty + "," + posAvg;
+        }
+
+        /**
+         Null when the checksum does not match, which is what a torn write looks like. A
+         line whose checksum matches but whose fields do not parse was written that way,
+         so it is reported rather than mistaken for the end of the journal.
+        */
+        static Entry parse(String line) throws IOException {
+            int cut = line.lastIndexOf(',');
+            if (cut < 0 || !Long.toHexString(crc(line.substring(0, cut))).equals(line.substring(cut + 1))) return null;
+            String[] r = line.substring(0, cut).split(",", -1);
+            try {
+                if (r.length != 10) throw new IllegalArgumentException(r.length + " fields");
+                return new Entry(Long.parseLong(r[0]), r[1], r[2], r[3], Integer.parseInt(r[4]), Long.parseLong(r[5]),
+                        Long.parseLong(r[6]), Long.parseLong(r[7]), Integer.parseInt(r[8]), Long.parseLong(r[9]));
+            } catch (Exception e) {
+                throw new IOException("unreadable journal entry: " + line, e);
+            }
+        }
+    }
+
+    private final File file, meta;
+    private final AccountStore accounts;
+    private final long maxDelayNanos;
+    private final int maxBatchBytes;
+    private GroupCommitLog out;
+    private long snapshotLsn, nextLsn, pending;
+
+    /** Group commits every 2 ms or 64 KiB, whichever comes first */
+    Journal(File file, File meta, AccountStore accounts) throws IOException {
+        this(file, meta, accounts, 2, TimeUnit.MILLISECONDS, 64 << 10);
+    }
+
+    Journal(File file, File meta, AccountStore accounts, long maxDelay, TimeUnit unit, int maxBatchBytes) throws IOException {
+        this.file = file;
+        this.meta = meta;
+        this.accounts = accounts;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchBytes = maxBatchBytes;
+        if (meta.exists()) {
+            String text = new String(Files.readAllBytes(meta.toPath()), StandardCharsets.UTF_8).trim();
+            try {
+                snapshotLsn = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                // guessing 0 would re-apply or drop journal entries, so refuse to open instead
+                throw new IOException("corrupt snapshot LSN in " + meta + ": \"" + text + "\"", e);
+            }
+        }
+        compact();
     }
 
-    public synchronized String getName() { return name; }
-    public synchronized String getSymbol() { return symbol; }
-    public synchronized double getPrice() { return price; }
-    public synchronized double getLastPrice() { return lastPrice; }
+    /**
+     Journal one trade with the user's state after it. The future completes with the
+     trade's LSN once its group has been fsynced.
+    */
+    public synchronized CompletableFuture<Long> append(String user, Transaction tx, String symbol, long balance, int posQty, long posAvg) throws IOException {
+        long lsn = nextLsn++;
+        Entry e = new Entry(lsn, user, tx.getType(), symbol, tx.getQuantity(), tx.getPrice(), tx.getTimeNanos(), balance, posQty, posAvg);
+        String body = e.toLine();
+        CompletableFuture<Long> durable = out.append((body + "," + Long.toHexString(crc(body)) + "\n").getBytes(StandardCharsets.UTF_8)).thenApply(v -> lsn);
+        if (++pending >= COMPACT_EVERY) compact();
+        return durable;
+    }
 
-    public synchronized void setPrice(double p) {
-        lastPrice = price;
-        price = Math.max(0.01, Math.round(p * 100.0) / 100.0);
-        addHistory(price);
+    /** Fold the journal into the CSV snapshots and start it afresh */
+    public synchronized void compact() throws IOException {
+        if (out != null && nextLsn - 1 == snapshotLsn) return; // nothing journaled since the last snapshot
+        if (out != null) out.close();
+        List<Entry> entries = new ArrayList<>();
+        long last = snapshotLsn;
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    Entry e = Entry.parse(line);
+                    if (e == null) {
+                        if (br.readLine() != null) throw new IOException("corrupt journal entry before the tail: " + line);
+                        break; // torn tail: nothing after it was acknowledged
+                    }
+                    if (e.lsn <= snapshotLsn) continue;
+                    entries.add(e);
+                    last = Math.max(last, e.lsn);
+                }
+            }
+        }
+        if (!entries.isEmpty()) {
+            applyToSnapshot(entries);
+            writeMeta(last); // durable before the journal below is truncated
+        }
+        snapshotLsn = last;
+        // history rows are keyed by LSN: never hand out one the store already holds, even if meta was lost
+        String applied = Utils.kv().get(Utils.APPLIED_LSN_KEY);
+        nextLsn = Math.max(last, (applied != null) ? Long.parseLong(applied) : 0) + 1;
+        pending = 0;
+        out = new GroupCommitLog(file, true, maxDelayNanos, TimeUnit.NANOSECONDS, maxBatchBytes);
     }
 
-    private void addHistory(double p) {
-        history.add(new PricePoint(LocalDateTime.now(), p));
-        if (history.size() > 200) history.remove(0);
+    private void applyToSnapshot(List<Entry> entries) throws IOException {
+        Map<String, List<Entry>> byUser = new LinkedHashMap<>();
+        for (Entry e : entries) byUser.computeIfAbsent(e.user, k -> new ArrayList<>()).add(e);
+        for (Map.Entry<String, List<Entry>> u : byUser.entrySet()) {
+            String user = u.getKey();
+            List<Entry> es = u.getValue();
+            if (accounts.exists(user)) accounts.setBalance(user, es.get(es.size() - 1).balance);
+
+            KvStore kv = Utils.kv();
+            for (Entry e : es) {
+                String key = Utils.positionKey(user, e.symbol);
+                if (e.posQty == 0) kv.delete(key);
+                else kv.put(key, e.posQty + "," + Money.format(e.posAvg, Money.AVG_SCALE));
+            }
+
+            TxLog.put(kv, user, es);
+        }
+        long last = 0;
+        for (Entry e : entries) last = Math.max(last, e.lsn);
+        String applied = Utils.kv().get(Utils.APPLIED_LSN_KEY);
+        if (applied == null || Long.parseLong(applied) < last) Utils.kv().put(Utils.APPLIED_LSN_KEY, Long.toString(last));
+        accounts.flush(); // balances, positions and history must be on disk before the journal that covers them goes
+        Utils.kv().flush();
     }
 
-    public synchronized List<PricePoint> getHistory() { return new ArrayList<>(history); }
+    /** Replace snapshot.meta and fsync both it and its directory, so the rename survives a crash */
+    private void writeMeta(long lsn) throws IOException {
+        File tmp = new File(meta.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((lsn + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        File dir = meta.getAbsoluteFile().getParentFile();
+        try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
 
-    public synchronized double getDailyChangePercent() {
-        if (history.size() < 2) return 0.0;
-        double first = history.get(0).price;
-        if (first <= 0) return 0.0;
-        return (price - first) / first * 100.0;
+    static long crc(String s) {
+        CRC32 c = new CRC32();
+        c.update(s.getBytes(StandardCharsets.UTF_8));
+        return c.getValue();
     }
 
-    static class PricePoint {
-        final LocalDateTime time;
-        final double price;
-        PricePoint(LocalDateTime t, double p) { time = t; price = p; }
+    @Override
+    public synchronized void close() throws IOException { if (out != null) out.close(); }
+
+    /** Block until every trade journaled so far is durable */
+    public void sync() throws IOException {
+        GroupCommitLog log;
+        synchronized (this) { log = out; }
+        log.sync();
     }
 }
 
-class PortfolioItem {
-    private final String symbol;
-    private int quantity;
-    private double avgPrice;
+/**
+ Append-only log with group commit. Appenders hand over encoded records and get a
+ future back; a single flusher thread writes everything pending in one call and
+ fsyncs it once, then completes the whole group. A group is cut when it reaches
+ {@code maxBatchBytes} or when its oldest record has waited {@code maxDelayNanos}.
+*/
+class GroupCommitLog implements Closeable {
+    private final FileChannel ch;
+    private final long maxDelayNanos;
+    private final int maxBatchBytes;
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16), spare = new ByteArrayOutputStream(1 << 16);
+    private List<CompletableFuture<Void>> waiters = new ArrayList<>(), spareWaiters = new ArrayList<>();
+    private long firstPendingAt;
+    // records appended, records written and fsynced (or failed); sync waits on the gap, which covers the group in flight
+    private long appended, flushed, failedThrough;
+    private IOException failure;
+    private boolean closed;
+    private final Thread flusher;
 
-    public PortfolioItem(String symbol, int quantity, double avgPrice) {
-        this.symbol = symbol;
-        this.quantity = quantity;
-        this.avgPrice = avgPrice;
+    GroupCommitLog(File f, boolean truncate, long maxDelay, TimeUnit unit, int maxBatchBytes) throws IOException {
+        ch = truncate
+                ? FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchBytes = maxBatchBytes;
+        flusher = new Thread(this::flushLoop, "group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    public String getSymbol() { return symbol; }
-    public int getQuantity() { return quantity; }
-    public double getAvgPrice() { return avgPrice; }
+    /** Queue one record; the future completes once it is on disk */
+    public CompletableFuture<Void> append(byte[] record) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                done.completeExceptionally(new IOException("log closed"));
+                return done;
+            }
+            if (pending.size() == 0) firstPendingAt = System.nanoTime();
+            pending.write(record, 0, record.length);
+            waiters.add(done);
+            appended++;
+            if (pending.size() >= maxBatchBytes) lock.notifyAll();
+            else if (waiters.size() == 1) lock.notifyAll(); // start the flusher's delay clock
+        }
+        return done;
+    }
 
-    public void addQuantity(int q, double pricePerShare) {
-        double totalCost = avgPrice * quantity + pricePerShare * q;
-        quantity += q;
-        avgPrice = (quantity == 0) ? 0 : totalCost / quantity;
+    /** Wait until everything appended so far is durable, including a group the flusher is already writing */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long target = appended;
+            if (flushed >= target) return;
+            firstPendingAt = Long.MIN_VALUE / 2; // due now
+            lock.notifyAll();
+            try {
+                while (flushed < target) lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log to sync");
+            }
+            if (failedThrough >= target) throw new IOException(failure);
+        }
     }
 
-    public boolean removeQuantity(int q) {
-        if (q > quantity) return false;
-        quantity -= q;
-        return true;
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            List<CompletableFuture<Void>> group;
+            long upTo;
+            synchronized (lock) {
+                try {
+                    while (true) {
+                        if (pending.size() == 0) {
+                            if (closed) return;
+                            lock.wait();
+                            continue;
+                        }
+                        long wait = firstPendingAt + maxDelayNanos - System.nanoTime();
+                        if (closed || pending.size() >= maxBatchBytes || wait <= 0) break;
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                upTo = appended;
+                batch = pending;
+                group = waiters;
+                pending = spare;
+                waiters = spareWaiters;
+                spare = batch;
+                spareWaiters = group;
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(batch.toByteArray());
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(false);
+                for (CompletableFuture<Void> f : group) f.complete(null);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failedThrough = upTo;
+                    failure = e;
+                }
+                for (CompletableFuture<Void> f : group) f.completeExceptionally(e);
+            }
+            synchronized (lock) {
+                flushed = upTo;
+                lock.notifyAll();
+            }
+            // the flusher owns the spare pair until the next swap
+            batch.reset();
+            group.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ch.close();
     }
 }
 
-class Transaction {
-    private final String type; // BUY / SELL
-    private final String symbol;
-    private final int quantity;
-    private final double price;
-    private final String timestamp;
+/* ----------------------- Persistence Stage ----------------------- */
+/** Told when a trade handed to the {@link PersistenceStage} is durable, or why it never will be */
+interface DurabilityListener {
+    void durable(Transaction tx, long lsn);
+    void failed(Transaction tx, Throwable cause);
+}
 
-    public Transaction(String type, String symbol, int quantity, double price) {
-        this.type = type;
-        this.symbol = symbol;
-        this.quantity = quantity;
-        this.price = price;
-        this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+/**
+ Takes trade persistence off the caller's thread. Trades reserve a slot before they
+ touch any state (the queue is bounded, so a trade is refused rather than left
+ waiting on a slow disk), then publish the resulting balance and position. A single
+ writer drains whatever has queued and journals each trade, so trades do no file
+ I/O on the caller's thread. Balances reach the account store only through
+ compaction, which folds in durable journal entries, so the store never holds a
+ balance the journal could lose.
+*/
+class PersistenceStage implements Closeable {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static final class Trade {
+        final String user, symbol;
+        final Transaction tx;
+        final long balance, posAvg;
+        final int posQty;
+        final DurabilityListener ack;
+
+        Trade(String user, Transaction tx, String symbol, long balance, int posQty, long posAvg, DurabilityListener ack) {
+            this.user = user;
+            this.tx = tx;
+            this.symbol = symbol;
+            this.balance = balance;
+            this.posQty = posQty;
+            this.posAvg = posAvg;
+            this.ack = ack;
+        }
     }
 
-    public String getType() { return type; }
-    public String getSymbol() { return symbol; }
-    public int getQuantity() { return quantity; }
-    public double getPrice() { return price; }
-    public String getTimestamp() { return timestamp; }
-}
+    private final Journal journal;
+    private final Semaphore slots;
+    private final BlockingQueue<Trade> queue;
+    private final Object progress = new Object();
+    private long published, written; // guarded by progress
+    private volatile boolean closed;
+    private final Thread writer;
 
-class User {
-    private final String username;
-    private final String password;
-    private double balance;
+    PersistenceStage(Journal journal, int capacity) {
+        this.journal = journal;
+        slots = new Semaphore(capacity);
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(this::writeLoop, "persist");
+        writer.setDaemon(true);
+        writer.start();
+    }
 
-    public User(String username, String password, double balance) {
-        this.username = username;
-        this.password = password;
-        this.balance = balance;
+    /** Claim a queue slot; false means the writer is behind and the trade should be refused */
+    public boolean reserve() { return !closed && slots.tryAcquire(); }
+
+    /** Give back a slot from {@link #reserve()} when the trade did not go ahead */
+    public void release() { slots.release(); }
+
+    /** Queue a trade into a slot already reserved; never blocks */
+    public void publish(String user, Transaction tx, String symbol, long balance, PortfolioItem position, DurabilityListener ack) {
+        Trade t = new Trade(user, tx, symbol, balance, (position != null) ? position.getQuantity() : 0, (position != null) ? position.getAvgCost() : 0, ack);
+        synchronized (progress) { published++; }
+        queue.add(t);
     }
 
-    public String getUsername() { return username; }
-    public String getPassword() { return password; }
+    public int backlog() { return queue.size(); }
 
-    public synchronized double getBalance() { return balance; }
-    public synchronized void deposit(double amt) { balance += amt; }
-    public synchronized boolean withdraw(double amt) {
-        if (amt <= balance) { balance -= amt; return true; }
-        return false;
+    /** Wait until every trade published so far has been handed to the journal */
+    public void drain() {
+        synchronized (progress) {
+            long target = published;
+            try {
+                while (written < target) progress.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
-}
 
-/* ----------------------- Market Engine ----------------------- */
-class MarketEngine {
-    private final Map<String, Stock> stocks = new LinkedHashMap<>();
-    private ScheduledExecutorService scheduler;
-    private final Random rng = new Random();
+    private void writeLoop() {
+        List<Trade> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            try {
+                for (Trade t : batch) {
+                    try {
+                        journal.append(t.user, t.tx, t.symbol, t.balance, t.posQty, t.posAvg)
+                                .whenComplete((lsn, err) -> {
+                                    if (err == null) t.ack.durable(t.tx, lsn);
+                                    else t.ack.failed(t.tx, err);
+                                });
+                    } catch (Throwable e) { // anything escaping would kill this thread and leave drain() waiting forever
+                        fail(t, e);
+                    }
+                }
+            } finally {
+                slots.release(batch.size());
+                synchronized (progress) {
+                    written += batch.size();
+                    progress.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
 
-    public MarketEngine() {
-        // --- Preloaded Stock List (Indian + Global) ---
-        addStock(new Stock("Reliance Industries", "RELI", 2850.00));
-        addStock(new Stock("TCS", "TCS", 3450.00));
-        addStock(new Stock("Infosys", "INFY", 1450.50));
-        addStock(new Stock("HCL Technologies", "HCLT", 1120.40));
-        addStock(new Stock("Wipro", "WIPRO", 490.20));
-        addStock(new Stock("Maruti Suzuki", "MARUTI", 10725.50));
-        addStock(new Stock("Tata Motors", "TATAMOT", 925.10));
-        addStock(new Stock("HDFC Bank", "HDFCBANK", 1590.45));
-        addStock(new Stock("ICICI Bank", "ICICIBANK", 1045.35));
-        addStock(new Stock("State Bank of India", "SBIN", 845.25));
-        addStock(new Stock("Bajaj Finance", "BAJFIN", 6980.75));
-        addStock(new Stock("Asian Paints", "ASIANPNT", 3200.10));
-        addStock(new Stock("ITC Ltd", "ITC", 470.35));
-        addStock(new Stock("Adani Enterprises", "ADANIENT", 2325.60));
-        addStock(new Stock("Larsen & Toubro", "LT", 3580.90));
-        addStock(new Stock("Bharti Airtel", "AIRTEL", 1030.25));
-        addStock(new Stock("Sun Pharma", "SUNPHARMA", 1455.15));
-        addStock(new Stock("Titan Company", "TITAN", 3450.80));
-        addStock(new Stock("Nestle India", "NESTLE", 25900.00));
-        addStock(new Stock("Hindustan Unilever", "HUL", 2530.25));
-        addStock(new Stock("PowerGrid Corp", "POWERGRID", 310.10));
-        addStock(new Stock("ONGC", "ONGC", 265.45));
-        addStock(new Stock("Coal India", "COALIND", 410.60));
-        addStock(new Stock("Adani Green", "ADANIGRN", 1210.75));
-        addStock(new Stock("JSW Steel", "JSWSTL", 930.25));
-        addStock(new Stock("NTPC", "NTPC", 310.40));
-        addStock(new Stock("Apple Inc.", "AAPL", 150.00));
-        addStock(new Stock("Microsoft Corp", "MSFT", 340.00));
-        addStock(new Stock("Amazon", "AMZN", 130.00));
-        addStock(new Stock("Tesla Motors", "TSLA", 220.00));
-        addStock(new Stock("Google (Alphabet)", "GOOG", 125.00));
-        addStock(new Stock("Meta Platforms", "META", 250.00));
-        addStock(new Stock("NVIDIA Corp", "NVDA", 900.00));
-        addStock(new Stock("Adobe Inc.", "ADBE", 510.00));
-        addStock(new Stock("Intel Corp", "INTC", 34.00));
-        addStock(new Stock("Oracle", "ORCL", 108.00));
-        addStock(new Stock("Coca-Cola", "KO", 58.00));
-        addStock(new Stock("PepsiCo", "PEP", 175.00));
-        addStock(new Stock("Toyota Motor", "TM", 190.00));
-        addStock(new Stock("Sony Group", "SONY", 88.00));
-    }
-
-    private void addStock(Stock s) {
-        stocks.put(s.getSymbol(), s);
-    }
-
-    public Collection<Stock> getStocks() {
-        return stocks.values();
+    private static void fail(Trade t, Throwable cause) {
+        try {
+            t.ack.failed(t.tx, cause);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
     }
 
-    public Stock getStock(String symbol) {
-        return stocks.get(symbol);
+    /** Stop taking trades, write out the backlog and wait for it to be durable */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        drain();
+        writer.interrupt();
+        journal.sync();
     }
+}
 
-    /** Start market price simulation and call the given Runnable after each tick */
-    public void start(Runnable onTick) {
-        if (scheduler != null && !scheduler.isShutdown()) return;
+/* ----------------------- Transaction Log ----------------------- */
+/**
+ Trade history, kept in the shared {@link Utils#kv} store rather than in files of its
+ own, so the data directory holds the same handful of files however many users trade.
+ Each trade is one entry under {@link Utils#txKey}, keyed by its journal LSN: a user's
+ history is one prefix scan in trade order, and replaying a journal entry rewrites the
+ same key. Trades from before the journal have LSN 0 and are told apart by row number,
+ which still sorts them ahead of every journaled trade. The tx_<user>.csv and
+ tx_<user>.bin/.sym files of earlier versions are imported once by {@link #importAll}.
+*/
+class TxLog {
+    // layout of the old tx_<user>.bin files, read only to import them
+    static final int MAGIC = 0x54584C47; // "TXLG"
+    static final int VERSION = 1;
+    static final int HEADER = 16, RECORD = 40;
+    static final byte BUY = 0, SELL = 1;
+    private static final int TYPE = 0, SYMBOL = 4, QTY = 8, PRICE = 16, TIME = 24, LSN = 32;
 
-        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            return t;
-        });
+    static String typeName(byte code) { return (code == SELL) ? "SELL" : "BUY"; }
+
+    /** Value stored for one trade: type,symbol,qty,price in paise,epoch nanos */
+    static String encode(Journal.Entry e) {
+        return e.type + "," + e.symbol + "," + e.qty + "," + e.price + "," + e.timeNanos;
+    }
+
+    /** Store journaled trades; a key already present gets the same value again, so replay needs no bookkeeping */
+    static void put(KvStore kv, String user, List<Journal.Entry> rows) throws IOException {
+        for (Journal.Entry e : rows) kv.put(Utils.txKey(user, e.lsn), encode(e));
+    }
+
+    /** Like {@link #put}, but trades without an LSN are keyed by their row in the file they came from */
+    private static void putImported(KvStore kv, String user, List<Journal.Entry> rows) throws IOException {
+        for (int i = 0; i < rows.size(); i++) {
+            Journal.Entry e = rows.get(i);
+            String key = Utils.txKey(user, e.lsn);
+            if (e.lsn == 0) key += String.format(".%09d", i);
+            kv.put(key, encode(e));
+        }
+    }
 
-        scheduler.scheduleAtFixedRate(() -> {
-            simulateTick();
-            if (onTick != null) {
-                try { onTick.run(); } catch (Exception ignored) {}
+    /**
+     Import every remaining tx_<user>.csv and tx_<user>.bin under the data directory (a
+     one-time migration). Files are retired only after the store has flushed, so an
+     interrupted import runs again and rewrites the same keys. A user's CSV is imported
+     after the binary log, which was built from it.
+    */
+    static void importAll(KvStore kv) {
+        File[] files = new File(Utils.DATA_DIR).listFiles((d, name) -> name.startsWith("tx_") && (name.endsWith(".csv") || name.endsWith(".bin")));
+        if (files == null || files.length == 0) return;
+        Arrays.sort(files); // ".bin" < ".csv"
+        List<File> imported = new ArrayList<>();
+        for (File f : files) {
+            String name = f.getName(), user = name.substring(3, name.length() - 4);
+            try {
+                putImported(kv, user, name.endsWith(".csv") ? readCsv(user, f) : readBin(user, f));
+                imported.add(f);
+                if (name.endsWith(".bin")) imported.add(symFile(user));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        }, 0, 3, TimeUnit.SECONDS);
+        }
+        try {
+            kv.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (File f : imported) {
+            if (f.exists() && !f.renameTo(new File(f.getPath() + ".migrated"))) System.err.println("could not retire " + f);
+        }
+    }
+
+    private static File symFile(String user) { return new File(Utils.DATA_DIR, "tx_" + user + ".sym"); }
+
+    /** Rows of a CSV history (type,symbol,qty,price,timestamp[,lsn]); unreadable rows are skipped */
+    private static List<Journal.Entry> readCsv(String user, File csv) {
+        List<Journal.Entry> rows = new ArrayList<>();
+        for (String[] r : Utils.readCSV(csv.getPath())) {
+            try {
+                long time = 0;
+                try {
+                    time = LocalDateTime.parse(r[4], Utils.TIMESTAMP).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() * 1_000_000L;
+                } catch (Exception ignored) {}
+                long lsn = (r.length > 5) ? Long.parseLong(r[5]) : 0;
+                rows.add(new Journal.Entry(lsn, user, r[0], r[1], Integer.parseInt(r[2]), Money.parse(r[3]), time, 0, 0, 0));
+            } catch (Exception ignored) {}
+        }
+        return rows;
     }
 
-    public void stop() {
-        if (scheduler != null) scheduler.shutdownNow();
+    /** Rows of a binary history and its symbol sidecar; a torn trailing record is ignored */
+    private static List<Journal.Entry> readBin(String user, File bin) throws IOException {
+        ByteBuffer map;
+        try (FileChannel ch = FileChannel.open(bin.toPath(), StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        List<Journal.Entry> rows = new ArrayList<>();
+        if (map.capacity() < HEADER) return rows;
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("not a transaction log: " + bin);
+        String[] symbols = Files.readAllLines(symFile(user).toPath(), StandardCharsets.UTF_8).toArray(new String[0]);
+        for (int at = HEADER; at + RECORD <= map.capacity(); at += RECORD) {
+            rows.add(new Journal.Entry(map.getLong(at + LSN), user, typeName(map.get(at + TYPE)), symbols[map.getInt(at + SYMBOL)],
+                    map.getInt(at + QTY), map.getLong(at + PRICE), map.getLong(at + TIME), 0, 0, 0));
+        }
+        return rows;
     }
 
-    /** Simulate ±2% change, occasional random spike */
-    private void simulateTick() {
-        for (Stock s : stocks.values()) {
-            double price = s.getPrice();
-            double pctChange = (rng.nextDouble() * 4.0) - 2.0; // -2% to +2%
-            double newPrice = price + price * pctChange / 100.0;
-            if (rng.nextDouble() < 0.03) {
-                newPrice *= (1 + (rng.nextDouble() * 0.08 - 0.04)); // random spike
+    /**
+     A user's history as it was when opened, newest first. Rows are fetched from the store
+     a page at a time as callers reach them, so opening costs one page however long the
+     account has traded; trades stored after opening sort above the first page and never
+     show up here.
+    */
+    static final class Reader {
+        static final int PAGE = 256;
+        private final KvStore kv;
+        private final String prefix;
+        private final List<String> rows = new ArrayList<>(); // newest first, as far as fetched
+        private String next; // key the next page starts below, null once the oldest row is in
+        private int cached = -1;
+        private String[] fields;
+
+        Reader(KvStore kv, String user) throws IOException {
+            this.kv = kv;
+            prefix = Utils.txKey(user, "");
+            next = prefix + Character.MAX_VALUE;
+            fetch();
+        }
+
+        /** Whether row {@code i} exists, fetching pages up to it */
+        public boolean has(int i) throws IOException {
+            while (i >= rows.size() && next != null) fetch();
+            return i < rows.size();
+        }
+
+        /** Row 0 is the newest trade; call {@link #has} first */
+        public String type(int i) { return fields(i)[0]; }
+        public String symbol(int i) { return fields(i)[1]; }
+        public int quantity(int i) { return Integer.parseInt(fields(i)[2]); }
+        public long price(int i) { return Long.parseLong(fields(i)[3]); }
+        public long timeNanos(int i) { return Long.parseLong(fields(i)[4]); }
+
+        private void fetch() throws IOException {
+            List<Map.Entry<String, String>> page = kv.scanDescending(prefix, next, PAGE);
+            for (Map.Entry<String, String> e : page) {
+                if (e.getKey().indexOf('/', prefix.length()) < 0) rows.add(e.getValue()); // skip a longer username that shares this prefix
             }
-            s.setPrice(newPrice);
+            next = (page.size() < PAGE) ? null : page.get(page.size() - 1).getKey();
+        }
+
+        private String[] fields(int i) {
+            if (i != cached) {
+                fields = rows.get(i).split(",", -1);
+                cached = i;
+            }
+            return fields;
         }
     }
 }
@@ -355,37 +4386,84 @@ class MarketEngine {
 class Controller {
     private final MarketEngine engine;
     private User currentUser;
-    private final Map<String, PortfolioItem> portfolioMap = new LinkedHashMap<>();
-    private final List<Transaction> transactions = new ArrayList<>();
+    private final Positions positions = new Positions();
+    private final List<Transaction> transactions = new ArrayList<>(); // this session's trades, oldest first so a trade appends
+    private TxLog.Reader history; // trades persisted before login
+    private final AccountStore accounts;
+    private final Journal journal;
+    private final PersistenceStage persist;
+    private volatile DurabilityListener durability = new DurabilityListener() {
+        public void durable(Transaction tx, long lsn) {}
+        public void failed(Transaction tx, Throwable cause) { cause.printStackTrace(); }
+    };
 
     public Controller(MarketEngine engine) {
         this.engine = engine;
         Utils.ensureDataDir();
+        try {
+            accounts = AccountStore.openOrMigrate(new File(Utils.ACCOUNTS_FILE), new File(Utils.USERS_FILE));
+            TxLog.importAll(Utils.kv()); // the first open imports portfolio CSVs, before recovery writes positions
+            journal = new Journal(new File(Utils.JOURNAL_FILE), new File(Utils.SNAPSHOT_META), accounts); // replays any journal left by a crash
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        persist = new PersistenceStage(journal, PersistenceStage.DEFAULT_CAPACITY);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { persist.close(); } catch (IOException e) { e.printStackTrace(); }
+            accounts.close();
+        }, "persist-shutdown"));
     }
 
+    /** Called from the journal's flusher thread as each trade becomes durable or fails to */
+    public void setDurabilityListener(DurabilityListener l) { durability = Objects.requireNonNull(l); }
+
     public MarketEngine getEngine() { return engine; }
     public User getCurrentUser() { return currentUser; }
-    public Collection<PortfolioItem> getPortfolioItems() { return new ArrayList<>(portfolioMap.values()); }
-    public List<Transaction> getTransactions() { return new ArrayList<>(transactions); }
+    public Collection<PortfolioItem> getPortfolioItems() { return new ArrayList<>(positions.values()); }
+
+    /** i = 0 is the newest trade, null past the oldest; persisted rows are read a page at a time as they are reached */
+    public Transaction getTransaction(int i) {
+        if (i < transactions.size()) return transactions.get(transactions.size() - 1 - i);
+        int row = i - transactions.size();
+        try {
+            if (history == null || !history.has(row)) return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return new Transaction(history.type(row), engine.symbols().intern(history.symbol(row)), history.quantity(row), history.price(row), history.timeNanos(row));
+    }
 
     // Sign up
     public boolean signup(String username, String password) {
-        Map<String, String[]> users = Utils.readUsersMap();
-        if (users.containsKey(username) || username.isBlank()) return false;
-        double initial = 10000.0;
-        users.put(username, new String[]{password, String.format("%.2f", initial)});
-        Utils.writeUsersMap(users);
+        if (!validUsername(username)) return false;
+        long initial = 10_000 * Money.SCALE;
+        try {
+            return accounts.create(username, password, initial);
+        } catch (IllegalArgumentException e) {
+            return false; // name or password too long for the account record
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** Names end up in journal fields, store keys and file names, so their separators are not allowed */
+    static boolean validUsername(String username) {
+        if (username.isBlank()) return false;
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c == ',' || c == '/' || c == '\\' || Character.isISOControl(c)) return false;
+        }
         return true;
     }
 
     // Login
     public boolean login(String username, String password) {
-        Map<String, String[]> users = Utils.readUsersMap();
-        if (!users.containsKey(username)) return false;
-        String[] v = users.get(username);
-        if (!v[0].equals(password)) return false;
-        double bal = 10000.0;
-        try { bal = Double.parseDouble(v[1]); } catch (Exception ignored) {}
+        persist.drain(); // earlier trades must reach the journal before it is folded in
+        try { journal.compact(); } catch (IOException e) { e.printStackTrace(); } // snapshots must reflect earlier sessions' trades
+        Long bal = accounts.authenticate(username, password);
+        if (bal == null) return false;
         currentUser = new User(username, password, bal);
         loadPortfolio();
         loadTransactions();
@@ -393,80 +4471,88 @@ class Controller {
     }
 
     private void loadPortfolio() {
-        portfolioMap.clear();
+        positions.clear();
         List<String[]> rows = Utils.loadPortfolio(currentUser.getUsername());
         for (String[] r : rows) {
             try {
-                String sym = r[0];
+                int sym = engine.symbols().intern(r[0]);
                 int qty = Integer.parseInt(r[1]);
-                double avg = Double.parseDouble(r[2]);
-                portfolioMap.put(sym, new PortfolioItem(sym, qty, avg));
+                long avg = Money.parse(r[2], Money.AVG_SCALE);
+                positions.put(new PortfolioItem(sym, qty, avg));
             } catch (Exception ignored) {}
         }
     }
 
-    private void savePortfolio() {
-        Utils.savePortfolio(currentUser.getUsername(), portfolioMap.values());
-    }
-
+    /** Open the persisted history at its newest page; older pages load as the table scrolls to them */
     private void loadTransactions() {
         transactions.clear();
-        List<String[]> rows = Utils.loadTransactions(currentUser.getUsername());
-        for (String[] r : rows) {
-            try {
-                String type = r[0];
-                String sym = r[1];
-                int qty = Integer.parseInt(r[2]);
-                double price = Double.parseDouble(r[3]);
-                // timestamp r[4] exists in CSV but constructor sets now; ok for display
-                Transaction t = new Transaction(type, sym, qty, price);
-                transactions.add(0, t);
-            } catch (Exception ignored) {}
+        try {
+            history = new TxLog.Reader(Utils.kv(), currentUser.getUsername());
+        } catch (IOException e) {
+            e.printStackTrace();
+            history = null;
         }
     }
 
-    private void persistUsersFile() {
-        Map<String, String[]> users = Utils.readUsersMap();
-        users.put(currentUser.getUsername(), new String[]{currentUser.getPassword(), String.format("%.2f", currentUser.getBalance())});
-        Utils.writeUsersMap(users);
+    /** Hand the trade and the user's state after it to the persistence stage; no file I/O here */
+    private void journal(Transaction tx) {
+        persist.publish(currentUser.getUsername(), tx, engine.symbols().symbol(tx.getSymbolId()), currentUser.getBalance(), positions.get(tx.getSymbolId()), durability);
+    }
+
+    /** False, after telling the user, if the persistence backlog is full */
+    private boolean reserve(Runnable callbackOnFinish) {
+        if (persist.reserve()) return true;
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(null, "Trade not accepted: saving is behind, try again shortly.");
+            if (callbackOnFinish != null) callbackOnFinish.run();
+        });
+        return false;
     }
 
     // Buy
     public void buy(String symbol, int qty, Runnable callbackOnFinish) {
+        buy(engine.symbols().lookup(symbol), qty, callbackOnFinish);
+    }
+
+    public void buy(int symbol, int qty, Runnable callbackOnFinish) {
         if (currentUser == null) return;
         Stock s = engine.getStock(symbol);
         if (s == null) return;
-        double cost = s.getPrice() * qty;
+        long price = s.getPricePaise(), cost = price * qty;
+        if (!reserve(callbackOnFinish)) return;
         boolean ok;
         synchronized (currentUser) { ok = currentUser.withdraw(cost); }
         if (!ok) {
+            persist.release();
             SwingUtilities.invokeLater(() -> {
                 JOptionPane.showMessageDialog(null, "Insufficient balance.");
                 if (callbackOnFinish != null) callbackOnFinish.run();
             });
             return;
         }
-        PortfolioItem it = portfolioMap.get(symbol);
+        PortfolioItem it = positions.get(symbol);
         if (it == null) {
-            it = new PortfolioItem(symbol, qty, s.getPrice());
-            portfolioMap.put(symbol, it);
+            it = new PortfolioItem(symbol, qty, Money.rescale(price, Money.SCALE, Money.AVG_SCALE));
+            positions.put(it);
         } else {
-            it.addQuantity(qty, s.getPrice());
+            it.addQuantity(qty, price);
         }
-        Transaction tx = new Transaction("BUY", symbol, qty, s.getPrice());
-        transactions.add(0, tx);
-        Utils.appendTransaction(currentUser.getUsername(), tx);
-        savePortfolio();
-        persistUsersFile();
+        Transaction tx = new Transaction("BUY", symbol, qty, price, engine.clock().now());
+        transactions.add(tx);
+        journal(tx);
         SwingUtilities.invokeLater(() -> { if (callbackOnFinish != null) callbackOnFinish.run(); });
     }
 
     // Sell
     public void sell(String symbol, int qty, Runnable callbackOnFinish) {
+        sell(engine.symbols().lookup(symbol), qty, callbackOnFinish);
+    }
+
+    public void sell(int symbol, int qty, Runnable callbackOnFinish) {
         if (currentUser == null) return;
         Stock s = engine.getStock(symbol);
         if (s == null) return;
-        PortfolioItem it = portfolioMap.get(symbol);
+        PortfolioItem it = positions.get(symbol);
         if (it == null || it.getQuantity() < qty) {
             SwingUtilities.invokeLater(() -> {
                 JOptionPane.showMessageDialog(null, "Not enough shares to sell.");
@@ -474,15 +4560,14 @@ class Controller {
             });
             return;
         }
+        if (!reserve(callbackOnFinish)) return;
         it.removeQuantity(qty);
-        if (it.getQuantity() == 0) portfolioMap.remove(symbol);
-        double gain = s.getPrice() * qty;
+        if (it.getQuantity() == 0) positions.remove(symbol);
+        long price = s.getPricePaise(), gain = price * qty;
         synchronized (currentUser) { currentUser.deposit(gain); }
-        Transaction tx = new Transaction("SELL", symbol, qty, s.getPrice());
-        transactions.add(0, tx);
-        Utils.appendTransaction(currentUser.getUsername(), tx);
-        savePortfolio();
-        persistUsersFile();
+        Transaction tx = new Transaction("SELL", symbol, qty, price, engine.clock().now());
+        transactions.add(tx);
+        journal(tx);
         SwingUtilities.invokeLater(() -> { if (callbackOnFinish != null) callbackOnFinish.run(); });
     }
 }
@@ -535,9 +4620,14 @@ class DarkView extends JFrame {
     private final JTable portfolioTable;
     private final DefaultTableModel txModel;
     private final JTable txTable;
+    private static final int TX_PAGE = 100; // history rows materialised per scroll step
     private final JLabel balanceLabel;
     private final ChartCanvas chartCanvas;
 
+    // market rows touched by ticks since the last EDT refresh; row index == symbol id
+    private final BitSet dirtyRows = new BitSet();
+    private final AtomicBoolean tickRefreshPending = new AtomicBoolean();
+
     public DarkView(Controller controller) {
         this.controller = controller;
         this.engine = controller.getEngine();
@@ -595,6 +4685,17 @@ class DarkView extends JFrame {
         chartPanel.setBackground(new Color(24,28,33));
         chartCanvas = new ChartCanvas();
         chartPanel.add(chartCanvas, BorderLayout.CENTER);
+        JComboBox<Object> resBox = new JComboBox<>();
+        resBox.addItem("Ticks");
+        for (BarResolution r : BarResolution.values()) resBox.addItem(r);
+        resBox.addActionListener(e -> {
+            Object o = resBox.getSelectedItem();
+            chartCanvas.setResolution(o instanceof BarResolution ? (BarResolution) o : null);
+        });
+        JPanel chartBar = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        chartBar.setBackground(new Color(24,28,33));
+        chartBar.add(resBox);
+        chartPanel.add(chartBar, BorderLayout.NORTH);
 
         // Trade panel
         JPanel tradePanel = new JPanel();
@@ -639,6 +4740,10 @@ class DarkView extends JFrame {
         txTable.setRowHeight(22);
         JScrollPane txScroll = new JScrollPane(txTable);
         txScroll.setPreferredSize(new Dimension(420, 180));
+        txScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            BoundedRangeModel m = txScroll.getVerticalScrollBar().getModel();
+            if (m.getValue() + m.getExtent() >= m.getMaximum() - 5 * txTable.getRowHeight()) loadTxRows(txModel.getRowCount() + TX_PAGE); // near the bottom: next older page
+        });
         right.add(txScroll, BorderLayout.SOUTH);
 
         add(right, BorderLayout.EAST);
@@ -684,8 +4789,18 @@ class DarkView extends JFrame {
             } catch (NumberFormatException ex) { JOptionPane.showMessageDialog(this, "Invalid quantity"); }
         });
 
-        // start engine updates and UI refresh
-        engine.start(() -> SwingUtilities.invokeLater(this::refreshAll));
+        // start engine updates; only rows whose price moved are refreshed
+        engine.subscribe(new TickListener() {
+            public void onTicks(TickBatch b) {
+                synchronized (dirtyRows) { for (int i = 0; i < b.size(); i++) dirtyRows.set(b.symbolId(i)); }
+                scheduleTickRefresh();
+            }
+            public void onOverrun(long lost) {
+                synchronized (dirtyRows) { dirtyRows.set(0, engine.getStocks().size()); }
+                scheduleTickRefresh();
+            }
+        }, WaitStrategy.SLEEP);
+        engine.start(null);
         refreshAll();
     }
 
@@ -710,78 +4825,151 @@ class DarkView extends JFrame {
     public void refreshAll() {
         // update balance label from controller user
         User u = controller.getCurrentUser();
-        if (u != null) balanceLabel.setText("Balance: ₹" + df.format(u.getBalance()));
+        if (u != null) balanceLabel.setText("Balance: ₹" + df.format(Money.toRupees(u.getBalance())));
         else balanceLabel.setText("Balance: ₹0.00");
 
         // market table
-        marketModel.setRowCount(0);
-        for (Stock s : engine.getStocks()) {
-            marketModel.addRow(new Object[]{s.getName(), s.getSymbol(), s.getPrice(), String.format("%.2f%%", s.getDailyChangePercent())});
+        if (marketModel.getRowCount() != engine.getStocks().size()) {
+            marketModel.setRowCount(0);
+            for (Stock s : engine.getStocks()) marketModel.addRow(new Object[]{s.getName(), s.getSymbol(), null, null});
         }
+        for (int id = 0; id < marketModel.getRowCount(); id++) updateMarketRow(id);
 
-        // portfolio
-        portfolioModel.setRowCount(0);
-        for (PortfolioItem it : controller.getPortfolioItems()) {
-            Stock s = engine.getStock(it.getSymbol());
-            double cur = (s == null) ? 0.0 : s.getPrice();
-            double val = cur * it.getQuantity();
-            double pl = (cur - it.getAvgPrice()) * it.getQuantity();
-            portfolioModel.addRow(new Object[]{it.getSymbol(), it.getQuantity(), String.format("%.2f", it.getAvgPrice()), String.format("%.2f", cur), String.format("%.2f", val), String.format("%.2f", pl)});
-        }
+        refreshPortfolio();
 
-        // transactions
+        // transactions: newest page only, older pages follow the scrollbar
+        int shown = Math.max(TX_PAGE, txModel.getRowCount() + 1);
         txModel.setRowCount(0);
-        for (Transaction t : controller.getTransactions()) {
-            txModel.addRow(new Object[]{t.getType(), t.getSymbol(), t.getQuantity(), String.format("%.2f", t.getPrice()), t.getTimestamp()});
+        loadTxRows(shown);
+
+        chartCanvas.repaint();
+    }
+
+    /** Append history rows up to {@code upTo} (or the end), continuing from the last row shown */
+    private void loadTxRows(int upTo) {
+        for (int i = txModel.getRowCount(); i < upTo; i++) {
+            Transaction t = controller.getTransaction(i);
+            if (t == null) break;
+            txModel.addRow(new Object[]{t.getType(), engine.symbols().symbol(t.getSymbolId()), t.getQuantity(), Money.format(t.getPrice()), Utils.formatTime(t.getTimeNanos())});
         }
+    }
+
+    private void scheduleTickRefresh() {
+        if (tickRefreshPending.compareAndSet(false, true)) SwingUtilities.invokeLater(this::refreshTicks);
+    }
 
+    private void refreshTicks() {
+        tickRefreshPending.set(false);
+        BitSet rows;
+        synchronized (dirtyRows) {
+            rows = (BitSet) dirtyRows.clone();
+            dirtyRows.clear();
+        }
+        for (int id = rows.nextSetBit(0); id >= 0 && id < marketModel.getRowCount(); id = rows.nextSetBit(id + 1)) updateMarketRow(id);
+        refreshPortfolio();
         chartCanvas.repaint();
     }
 
+    private void updateMarketRow(int id) {
+        Stock s = engine.getStock(id);
+        marketModel.setValueAt(s.getPrice(), id, 2);
+        marketModel.setValueAt(String.format("%.2f%%", s.getDailyChangePercent()), id, 3);
+    }
+
+    private void refreshPortfolio() {
+        portfolioModel.setRowCount(0);
+        for (PortfolioItem it : controller.getPortfolioItems()) {
+            Stock s = engine.getStock(it.getSymbolId());
+            long cur = (s == null) ? 0 : s.getPricePaise();
+            long val = cur * it.getQuantity();
+            long pl = val - it.getCostPaise();
+            String avg = Money.format(Money.rescale(it.getAvgCost(), Money.AVG_SCALE, Money.SCALE));
+            portfolioModel.addRow(new Object[]{engine.symbols().symbol(it.getSymbolId()), it.getQuantity(), avg, Money.format(cur), Money.format(val), Money.format(pl)});
+        }
+    }
+
     /* Lightweight chart canvas */
-    private static class ChartCanvas extends JPanel {
+    private static class ChartCanvas extends JPanel implements HistoryVisitor {
+        private static final int CANDLE_PX = 8;
         private Stock stock;
+        private BarResolution resolution; // null: raw tick line
+        private double[] prices = new double[Stock.DEFAULT_HISTORY];
+        private double minPrice, maxPrice;
+        private BarBuffer bars = new BarBuffer(64);
+        private int[] xs = new int[0], ys = new int[0];
+        private final int[] px = new int[4], py = new int[4];
         ChartCanvas() {
             setBackground(new Color(18,20,22));
             setPreferredSize(new Dimension(600,420));
             setBorder(new EmptyBorder(12,12,12,12));
         }
         public void setStock(Stock s) { this.stock = s; repaint(); }
+        public void setResolution(BarResolution r) { this.resolution = r; repaint(); }
+        @Override public void begin(int count, long lowPaise, long highPaise) {
+            if (count > prices.length) prices = new double[count];
+            minPrice = Money.toRupees(lowPaise); maxPrice = Money.toRupees(highPaise);
+        }
+        @Override public void point(int i, long timeNanos, long pricePaise) { prices[i] = Money.toRupees(pricePaise); }
         @Override
         protected void paintComponent(Graphics g0) {
             super.paintComponent(g0);
             if (stock == null) return;
-            List<Stock.PricePoint> h = stock.getHistory();
-            if (h.size() < 2) return;
             Graphics2D g = (Graphics2D) g0;
             g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
             int w = getWidth(), hgt = getHeight();
             int margin = 30;
             int gw = w - 2*margin, gh = hgt - 2*margin;
-            double min = Double.MAX_VALUE, max = Double.MIN_VALUE;
-            for (Stock.PricePoint p : h) { min = Math.min(min, p.price); max = Math.max(max, p.price); }
+            if (resolution != null) paintBars(g, margin, gw, gh);
+            else paintTicks(g, margin, gw, gh);
+            // labels
+            g.setColor(Color.WHITE);
+            g.setFont(new Font("Segoe UI", Font.BOLD, 13));
+            String res = (resolution != null) ? "  [" + resolution + "]" : "";
+            g.drawString(stock.getSymbol() + "  ₹" + Money.format(stock.getPricePaise()) + res, margin+6, margin+14);
+        }
+        private void paintTicks(Graphics2D g, int margin, int gw, int gh) {
+            int n = stock.readHistory(Integer.MAX_VALUE, this);
+            if (n < 2) return;
+            double min = minPrice, max = maxPrice;
             if (min == max) { min -= 1; max += 1; }
-            int n = h.size();
-            int[] xs = new int[n], ys = new int[n];
+            if (xs.length < n) { xs = new int[n]; ys = new int[n]; }
             for (int i=0;i<n;i++) {
                 xs[i] = margin + (int)((double)i/(n-1) * gw);
-                ys[i] = margin + gh - (int)((h.get(i).price - min)/(max-min) * gh);
+                ys[i] = margin + gh - (int)((prices[i] - min)/(max-min) * gh);
             }
             // area fill
             g.setColor(new Color(30,80,50,60));
             for (int i=0;i<n-1;i++) {
-                int[] px = {xs[i], xs[i+1], xs[i+1], xs[i]};
-                int[] py = {ys[i], ys[i+1], margin+gh, margin+gh};
+                px[0] = xs[i]; px[1] = xs[i+1]; px[2] = xs[i+1]; px[3] = xs[i];
+                py[0] = ys[i]; py[1] = ys[i+1]; py[2] = margin+gh; py[3] = margin+gh;
                 g.fillPolygon(px, py, 4);
             }
             // line
             g.setColor(new Color(0,180,100));
             g.setStroke(new BasicStroke(2.5f));
             for (int i=0;i<n-1;i++) g.drawLine(xs[i], ys[i], xs[i+1], ys[i+1]);
-            // labels
-            g.setColor(Color.WHITE);
-            g.setFont(new Font("Segoe UI", Font.BOLD, 13));
-            g.drawString(stock.getSymbol() + "  ₹" + String.format("%.2f", stock.getPrice()), margin+6, margin+14);
+        }
+        /** Newest bars that fit the width, one candle per bar */
+        private void paintBars(Graphics2D g, int margin, int gw, int gh) {
+            int want = Math.max(2, gw / CANDLE_PX);
+            if (bars.capacity() != want) bars = new BarBuffer(want);
+            int n = stock.copyBars(resolution, Long.MIN_VALUE, Long.MAX_VALUE, bars);
+            if (n < 1) return;
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i=0;i<n;i++) { min = Math.min(min, bars.low[i]); max = Math.max(max, bars.high[i]); }
+            if (min == max) { min -= 1; max += 1; }
+            g.setStroke(new BasicStroke(1f));
+            int body = Math.max(1, CANDLE_PX - 2);
+            for (int i=0;i<n;i++) {
+                int x = margin + i * CANDLE_PX;
+                int yo = margin + gh - (int)((bars.open[i] - min)/(max-min) * gh);
+                int yc = margin + gh - (int)((bars.close[i] - min)/(max-min) * gh);
+                int yh = margin + gh - (int)((bars.high[i] - min)/(max-min) * gh);
+                int yl = margin + gh - (int)((bars.low[i] - min)/(max-min) * gh);
+                g.setColor(bars.close[i] >= bars.open[i] ? new Color(0,180,100) : new Color(220,60,60));
+                g.drawLine(x + body/2, yh, x + body/2, yl);
+                g.fillRect(x, Math.min(yo, yc), body, Math.max(1, Math.abs(yc - yo)));
+            }
         }
     }
 }